@@ -2,12 +2,15 @@ package com.kamesuta.bungeepteropower;
 
 import com.kamesuta.bungeepteropower.api.BungeePteroPowerAPI;
 import com.kamesuta.bungeepteropower.api.PowerController;
+import com.kamesuta.bungeepteropower.api.PowerStatus;
 import com.kamesuta.bungeepteropower.power.PterodactylController;
 import net.md_5.bungee.api.plugin.Plugin;
 import net.md_5.bungee.api.plugin.PluginManager;
 
+import javax.annotation.Nullable;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -36,14 +39,69 @@ public final class BungeePteroPower extends Plugin implements BungeePteroPowerAP
      */
     public Messages messages;
     /**
-     * Delayed stop task manager
+     * Memory budget admission controller
      */
     public MemoryManager memory;
+    /**
+     * Queue of servers waiting to start
+     */
+    public StartQueue startQueue;
+    /**
+     * Delayed stop task manager
+     */
     public DelayManager delay;
+    /**
+     * Shared watcher for starting servers
+     */
+    public ReadinessWatcher readiness;
     /**
      * Power controllers
      */
     public Map<String, PowerController> powerControllers;
+    /**
+     * Coalesces concurrent power signals to the same server
+     */
+    public SignalCoalescer coalescer;
+    /**
+     * Last known power states of the servers
+     */
+    public ServerStateRegistry states;
+    /**
+     * History of how long servers take to start, stop and restore
+     */
+    public DurationHistory history;
+    /**
+     * Players on and connecting to each server
+     */
+    public Occupancy occupancy;
+    /**
+     * Stretches the idle stop timeout of servers players are likely to come back to
+     */
+    public IdleHysteresis idle;
+    /**
+     * Starts servers before the hours they are usually busy
+     */
+    public PrewarmScheduler prewarm;
+    /**
+     * Places players connecting to a server pool on one of its instances
+     */
+    public ServerPools pools;
+    /**
+     * Starts and drains the instances of server pools as the players come and go
+     */
+    public PoolAutoscaler autoscaler;
+    /**
+     * Schedules the polls while waiting for servers to start or stop
+     */
+    public Polling polling;
+    /**
+     * Power status of the servers pushed from or polled with the power controller
+     */
+    public StatusFeed statusFeed;
+    /**
+     * Built-in Pterodactyl power controller
+     */
+    public PterodactylController pterodactyl;
     /**
      * Statistics
      */
@@ -68,7 +126,14 @@ public final class BungeePteroPower extends Plugin implements BungeePteroPowerAP
 
         // Create PowerController map and register PterodactylController
         powerControllers = new ConcurrentHashMap<>();
-        powerControllers.put("pterodactyl", new PterodactylController());
+        pterodactyl = new PterodactylController();
+        powerControllers.put("pterodactyl", pterodactyl);
+        coalescer = new SignalCoalescer();
+        states = new ServerStateRegistry();
+        history = new DurationHistory();
+        polling = new Polling();
+        statusFeed = new StatusFeed();
+        occupancy = new Occupancy();
 
         // Check config
         config.validateConfig(getProxy().getConsole());
@@ -89,10 +154,29 @@ public final class BungeePteroPower extends Plugin implements BungeePteroPowerAP
             });
         }
 
+        // Create StartQueue
+        startQueue = new StartQueue();
+
+        // Create MemoryManager and start refreshing the memory limits
         memory = new MemoryManager();
+        memory.start();
+
+        // Create PrewarmScheduler and start checking for servers to pre-warm
+        prewarm = new PrewarmScheduler();
+        prewarm.start();
+
+        // Create ServerPools and start refreshing the resource usage of the nodes
+        pools = new ServerPools();
+        pools.start();
+        autoscaler = new PoolAutoscaler();
+        autoscaler.start();
 
         // Create DelayManager
         delay = new DelayManager();
+        // Create IdleHysteresis
+        idle = new IdleHysteresis();
+        // Create ReadinessWatcher
+        readiness = new ReadinessWatcher();
 
         // Plugin startup logic
         PluginManager pluginManager = getProxy().getPluginManager();
@@ -124,11 +208,50 @@ public final class BungeePteroPower extends Plugin implements BungeePteroPowerAP
         }
         // Load messages.yml
         messages = Messages.load(config.language, resourceMessages);
+
+        // Rebuild the shared Pterodactyl client with the new credentials
+        if (pterodactyl != null) {
+            pterodactyl.reloadClient();
+        }
+        // Refresh the memory limits with the new configuration
+        if (memory != null) {
+            memory.start();
+        }
+        if (prewarm != null) {
+            prewarm.start();
+        }
+        if (pools != null) {
+            pools.start();
+        }
+        if (autoscaler != null) {
+            autoscaler.start();
+        }
     }
 
     @Override
     public void onDisable() {
         // Plugin shutdown logic
+        if (history != null) {
+            history.save();
+        }
+        if (prewarm != null) {
+            prewarm.stop();
+        }
+        if (delay != null) {
+            delay.close();
+        }
+        if (memory != null) {
+            memory.stop();
+        }
+        if (pools != null) {
+            pools.stop();
+        }
+        if (autoscaler != null) {
+            autoscaler.stop();
+        }
+        if (pterodactyl != null) {
+            pterodactyl.close();
+        }
     }
 
     @Override
@@ -143,4 +266,15 @@ public final class BungeePteroPower extends Plugin implements BungeePteroPowerAP
         Objects.requireNonNull(name, "Name cannot be null");
         powerControllers.remove(name);
     }
+
+    @Override
+    public CompletableFuture<Void> waitForPowerStatus(String serverName, PowerStatus status, int timeout) {
+        return statusFeed.waitUntil(serverName, status, timeout);
+    }
+
+    @Override
+    public @Nullable String getServerId(String serverName) {
+        Config.ServerConfig server = config.getServerConfig(serverName);
+        return server != null ? server.id : null;
+    }
 }
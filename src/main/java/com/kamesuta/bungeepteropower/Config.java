@@ -16,6 +16,7 @@ import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import static com.kamesuta.bungeepteropower.BungeePteroPower.logger;
@@ -65,6 +66,14 @@ public class Config {
      * Send pings to the server synchronously
      */
     public final boolean useSynchronousPing;
+    /**
+     * The number of milliseconds the login waits for the ping of the initial server
+     */
+    public final int loginPingTimeout;
+    /**
+     * The number of seconds the last known power state of a server is trusted
+     */
+    public final int stateCacheTtl;
     /**
      * The number of seconds the plugin will try to connect the player to the desired server
      * Set this to the maximum time the server can take to start
@@ -80,6 +89,46 @@ public class Config {
      * The number of seconds between pings to check the server status
      */
     public final int pingInterval;
+    /**
+     * Empty servers are not stopped until they have been up for this number of seconds
+     */
+    public final int idleStopMinUptime;
+    /**
+     * The minimum number of seconds to wait before stopping an empty server, so that players switching out and back keep it running
+     */
+    public final int idleStopReentryGrace;
+    /**
+     * The window in seconds in which restarts of a server are counted for flap detection
+     */
+    public final int idleStopFlapWindow;
+    /**
+     * The number of restarts within the flap window after which the idle timeout of the server is stretched (0 to disable)
+     */
+    public final int idleStopFlapThreshold;
+    /**
+     * The maximum number of seconds an idle server drains before it is stopped (0 to stop right away)
+     */
+    public final int idleStopDrainTimeout;
+    /**
+     * Start servers before the hours they are usually busy, and keep them running during those hours
+     */
+    public final boolean prewarmEnabled;
+    /**
+     * The average number of connects in an hour of the week for the hour to count as busy
+     */
+    public final double prewarmMinConnects;
+    /**
+     * The number of seconds before a busy hour to start the server
+     */
+    public final int prewarmLeadTime;
+    /**
+     * The policy deciding the interval of polls while waiting for servers to start or stop (fixed, exponential, learned)
+     */
+    public final String pollingPolicy;
+    /**
+     * The maximum number of seconds between polls for the exponential and learned policies
+     */
+    public final int pollingMaxInterval;
     /**
      * Pterodactyl API URL
      */
@@ -88,14 +137,78 @@ public class Config {
      * Pterodactyl API Key
      */
     public final String pterodactylApiKey;
+    /**
+     * The number of threads the shared Pterodactyl HTTP client uses to handle responses
+     */
+    public final int pterodactylHttpThreads;
+    /**
+     * Receive power status changes from the Pterodactyl server websocket instead of polling
+     */
+    public final boolean pterodactylUseWebsocket;
+    /**
+     * The number of requests per minute the Pterodactyl panel allows
+     */
+    public final int pterodactylRateLimit;
+    /**
+     * The number of seconds a request to the Pterodactyl panel can wait for the rate limit
+     */
+    public final int pterodactylRateLimitQueueTimeout;
+    /**
+     * The number of consecutive failed requests after which requests to the Pterodactyl panel fail fast (0 to disable)
+     */
+    public final int pterodactylBreakerFailureThreshold;
+    /**
+     * The number of seconds requests to the Pterodactyl panel fail fast before the panel is checked again
+     */
+    public final int pterodactylBreakerOpenDuration;
     /**
      * Max memory before the severs won't start
      */
     public final int maxMemoryMB;
+    /**
+     * The interval in seconds to refresh the memory limits of the servers from the panel
+     */
+    public final int memoryRefreshInterval;
+    /**
+     * The interval in seconds to refresh the nodes and resource usage of the pooled servers from the panel
+     */
+    public final int poolRefreshInterval;
+    /**
+     * The interval in seconds to check whether the pools need more or fewer instances
+     */
+    public final int poolAutoscaleInterval;
+    /**
+     * The maximum number of servers starting at the same time (0 for no limit)
+     */
+    public final int startQueueMaxConcurrentStarts;
+    /**
+     * The number of seconds a server counts as starting until it becomes pingable
+     */
+    public final int startQueueStartingTimeout;
+    /**
+     * The number of seconds a server can wait in the start queue
+     */
+    public final int startQueueTimeout;
+    /**
+     * Servers whose idle timers fire within this number of seconds are stopped early to free memory for queued servers
+     */
+    public final int startQueuePreemptWithin;
+    /**
+     * Pterodactyl panels keyed by the panel name ("default" is the panel in the pterodactyl section)
+     */
+    private final Map<String, PanelConfig> panelMap;
     /**
      * Per-server configuration
      */
     private final Map<String, ServerConfig> serverMap;
+    /**
+     * Server names or glob patterns of each group, keyed by the group name
+     */
+    private final Map<String, List<String>> groupMap;
+    /**
+     * Server pools keyed by the pool name
+     */
+    private final Map<String, PoolConfig> poolMap;
 
     /**
      * Per-server configuration
@@ -115,11 +228,134 @@ public class Config {
          * If this is set, the server will be deleted and restored from the backup after stopping
          */
         public final @Nullable String backupId;
+        /**
+         * The priority of the server in the start queue
+         * Servers with higher priority are started first when the memory budget is exhausted
+         */
+        public final int priority;
+        /**
+         * The name of the Pterodactyl panel the server is on
+         */
+        public final String panel;
 
-        public ServerConfig(String id, int timeout, String backupId) {
+        public ServerConfig(String id, int timeout, String backupId, int priority, String panel) {
             this.id = id;
             this.timeout = timeout;
             this.backupId = backupId;
+            this.priority = priority;
+            this.panel = panel;
+        }
+    }
+
+    /**
+     * Per-panel configuration
+     */
+    public static class PanelConfig {
+        /**
+         * The name of the panel in the pterodactyl section
+         */
+        public static final String DEFAULT = "default";
+
+        /**
+         * The name of the panel
+         */
+        public final String name;
+        /**
+         * Pterodactyl API URL
+         */
+        public final URI url;
+        /**
+         * Pterodactyl API Key
+         */
+        public final String apiKey;
+        /**
+         * The number of threads the HTTP client of the panel uses to handle responses
+         */
+        public final int httpThreads;
+        /**
+         * The number of requests per minute the panel allows
+         */
+        public final int rateLimit;
+        /**
+         * The number of seconds a request to the panel can wait for the rate limit
+         */
+        public final int rateLimitQueueTimeout;
+        /**
+         * The number of consecutive failed requests after which requests to the panel fail fast (0 to disable)
+         */
+        public final int breakerFailureThreshold;
+        /**
+         * The number of seconds requests to the panel fail fast before the panel is checked again
+         */
+        public final int breakerOpenDuration;
+
+        public PanelConfig(String name, URI url, String apiKey, int httpThreads, int rateLimit, int rateLimitQueueTimeout, int breakerFailureThreshold, int breakerOpenDuration) {
+            this.name = name;
+            this.url = url;
+            this.apiKey = apiKey;
+            this.httpThreads = httpThreads;
+            this.rateLimit = rateLimit;
+            this.rateLimitQueueTimeout = rateLimitQueueTimeout;
+            this.breakerFailureThreshold = breakerFailureThreshold;
+            this.breakerOpenDuration = breakerOpenDuration;
+        }
+    }
+
+    /**
+     * Per-pool configuration
+     */
+    public static class PoolConfig {
+        /**
+         * The name of the pool, which is the name of the BungeeCord server players connect to
+         */
+        public final String name;
+        /**
+         * The names of the servers in the pool, each a server in the servers section
+         */
+        public final List<String> servers;
+        /**
+         * The number of players an instance is meant to hold (0 to disable autoscaling)
+         */
+        public final int playersPerInstance;
+        /**
+         * Another instance is started when the players fill this share of the instances that are up
+         */
+        public final double scaleUpAt;
+        /**
+         * An instance is drained when the players fill less than this share of the instances that are up
+         */
+        public final double scaleDownAt;
+        /**
+         * The number of instances kept up even without players
+         */
+        public final int minInstances;
+        /**
+         * The maximum number of instances started by autoscaling (0 for all instances)
+         */
+        public final int maxInstances;
+        /**
+         * The number of seconds to wait after scaling before scaling again
+         */
+        public final int cooldown;
+
+        public PoolConfig(String name, List<String> servers, int playersPerInstance, double scaleUpAt, double scaleDownAt, int minInstances, int maxInstances, int cooldown) {
+            this.name = name;
+            this.servers = servers;
+            this.playersPerInstance = playersPerInstance;
+            this.scaleUpAt = scaleUpAt;
+            this.scaleDownAt = scaleDownAt;
+            this.minInstances = minInstances;
+            this.maxInstances = maxInstances;
+            this.cooldown = cooldown;
+        }
+
+        /**
+         * Whether the pool is autoscaled
+         *
+         * @return true if playersPerInstance is set
+         */
+        public boolean isAutoscaled() {
+            return playersPerInstance > 0;
         }
     }
 
@@ -146,17 +382,66 @@ public class Config {
             this.restorePingInterval = configuration.getInt("restoreOnStop.pingInterval", 5);
             this.powerControllerType = configuration.getString("powerControllerType");
             this.useSynchronousPing = configuration.getBoolean("useSynchronousPing", false);
-            this.maxMemoryMB = configuration.getInt("maxMemoryMB");
+            this.loginPingTimeout = configuration.getInt("loginPingTimeout", 3000);
+            this.stateCacheTtl = configuration.getInt("stateCacheTtl", 30);
+            this.maxMemoryMB = configuration.getInt("maxMemoryMB", 0);
+            this.memoryRefreshInterval = configuration.getInt("memoryRefreshInterval", 300);
+            this.poolRefreshInterval = configuration.getInt("poolRefreshInterval", 30);
+            this.poolAutoscaleInterval = configuration.getInt("poolAutoscaleInterval", 15);
+
+            // Start queue settings
+            this.startQueueMaxConcurrentStarts = configuration.getInt("startQueue.maxConcurrentStarts", 0);
+            this.startQueueStartingTimeout = configuration.getInt("startQueue.startingTimeout", 120);
+            this.startQueueTimeout = configuration.getInt("startQueue.timeout", 300);
+            this.startQueuePreemptWithin = configuration.getInt("startQueue.preemptWithin", 30);
 
             // Startup join settings
             this.startupJoinTimeout = configuration.getInt("startupJoin.timeout");
             this.pingInterval = configuration.getInt("startupJoin.pingInterval");
             this.joinDelay = configuration.getInt("startupJoin.joinDelay");
 
+            // Idle stop settings
+            this.idleStopMinUptime = configuration.getInt("idleStop.minUptime", 60);
+            this.idleStopReentryGrace = configuration.getInt("idleStop.reentryGrace", 10);
+            this.idleStopFlapWindow = configuration.getInt("idleStop.flapWindow", 600);
+            this.idleStopFlapThreshold = configuration.getInt("idleStop.flapThreshold", 2);
+            this.idleStopDrainTimeout = configuration.getInt("idleStop.drainTimeout", 10);
+
+            // Pre-warm settings
+            this.prewarmEnabled = configuration.getBoolean("prewarm.enabled", false);
+            this.prewarmMinConnects = configuration.getDouble("prewarm.minConnects", 3);
+            this.prewarmLeadTime = configuration.getInt("prewarm.leadTime", 120);
+
+            // Polling settings
+            this.pollingPolicy = configuration.getString("polling.policy", "fixed");
+            this.pollingMaxInterval = configuration.getInt("polling.maxInterval", 30);
+
             // Pterodactyl API credentials
             this.pterodactylUrl = new URI(configuration.getString("pterodactyl.url"));
             this.pterodactylApiKey = configuration.getString("pterodactyl.apiKey");
+            this.pterodactylHttpThreads = configuration.getInt("pterodactyl.httpThreads", 2);
+            this.pterodactylUseWebsocket = configuration.getBoolean("pterodactyl.useWebsocket", false);
+            this.pterodactylRateLimit = configuration.getInt("pterodactyl.rateLimit.requestsPerMinute", 240);
+            this.pterodactylRateLimitQueueTimeout = configuration.getInt("pterodactyl.rateLimit.queueTimeout", 30);
+            this.pterodactylBreakerFailureThreshold = configuration.getInt("pterodactyl.circuitBreaker.failureThreshold", 5);
+            this.pterodactylBreakerOpenDuration = configuration.getInt("pterodactyl.circuitBreaker.openDuration", 30);
 
+            // Panel name -> Pterodactyl panel (unset settings of the named panels fall back to the pterodactyl section)
+            panelMap = new HashMap<>();
+            panelMap.put(PanelConfig.DEFAULT, new PanelConfig(PanelConfig.DEFAULT, pterodactylUrl, pterodactylApiKey, pterodactylHttpThreads,
+                    pterodactylRateLimit, pterodactylRateLimitQueueTimeout, pterodactylBreakerFailureThreshold, pterodactylBreakerOpenDuration));
+            Configuration panels = configuration.getSection("panels");
+            for (String panelName : panels.getKeys()) {
+                Configuration section = panels.getSection(panelName);
+                panelMap.put(panelName, new PanelConfig(panelName,
+                        new URI(section.getString("url")),
+                        section.getString("apiKey"),
+                        section.getInt("httpThreads", pterodactylHttpThreads),
+                        section.getInt("rateLimit.requestsPerMinute", pterodactylRateLimit),
+                        section.getInt("rateLimit.queueTimeout", pterodactylRateLimitQueueTimeout),
+                        section.getInt("circuitBreaker.failureThreshold", pterodactylBreakerFailureThreshold),
+                        section.getInt("circuitBreaker.openDuration", pterodactylBreakerOpenDuration)));
+            }
 
             // Bungeecord server name -> Pterodactyl server ID list
             serverMap = new HashMap<>();
@@ -166,7 +451,30 @@ public class Config {
                 String id = section.getString("id");
                 int timeout = section.getInt("timeout");
                 String backupId = section.getString("backupId", null);
-                serverMap.put(serverId, new ServerConfig(id, timeout, backupId));
+                int priority = section.getInt("priority", 0);
+                String panel = section.getString("panel", PanelConfig.DEFAULT);
+                serverMap.put(serverId, new ServerConfig(id, timeout, backupId, priority, panel));
+            }
+
+            // Group name -> Bungeecord server names or glob patterns
+            groupMap = new HashMap<>();
+            Configuration groups = configuration.getSection("groups");
+            for (String groupName : groups.getKeys()) {
+                groupMap.put(groupName, groups.getStringList(groupName));
+            }
+
+            // Pool name -> Bungeecord server names of the instances
+            poolMap = new HashMap<>();
+            Configuration pools = configuration.getSection("pools");
+            for (String poolName : pools.getKeys()) {
+                Configuration section = pools.getSection(poolName);
+                poolMap.put(poolName, new PoolConfig(poolName, section.getStringList("servers"),
+                        section.getInt("autoscale.playersPerInstance", 0),
+                        section.getDouble("autoscale.scaleUpAt", 0.8),
+                        section.getDouble("autoscale.scaleDownAt", 0.3),
+                        section.getInt("autoscale.minInstances", 0),
+                        section.getInt("autoscale.maxInstances", 0),
+                        section.getInt("autoscale.cooldown", 120)));
             }
 
         } catch (Exception e) {
@@ -194,6 +502,132 @@ public class Config {
         return serverMap.keySet();
     }
 
+    /**
+     * Get the Pterodactyl panel by name.
+     *
+     * @param panelName The panel name
+     * @return The panel, or null if not found
+     */
+    public @Nullable PanelConfig getPanelConfig(String panelName) {
+        return panelMap.get(panelName);
+    }
+
+    /**
+     * Get the Pterodactyl panel names.
+     *
+     * @return The panel names
+     */
+    public Set<String> getPanelNames() {
+        return panelMap.keySet();
+    }
+
+    /**
+     * Get the server names of the group, or of the servers matching the glob pattern.
+     *
+     * @param target "@group", a glob pattern ("*" and "?"), or a server name
+     * @return The Bungeecord server names in the configuration, sorted by name
+     */
+    public SortedSet<String> resolveServerNames(String target) {
+        List<String> patterns;
+        if (target.startsWith("@")) {
+            patterns = groupMap.getOrDefault(target.substring(1), Collections.emptyList());
+        } else {
+            patterns = Collections.singletonList(target);
+        }
+
+        SortedSet<String> result = new TreeSet<>();
+        for (String pattern : patterns) {
+            if (serverMap.containsKey(pattern)) {
+                result.add(pattern);
+            } else if (isGlob(pattern)) {
+                Pattern regex = globToRegex(pattern);
+                serverMap.keySet().stream()
+                        .filter(serverName -> regex.matcher(serverName).matches())
+                        .forEach(result::add);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the group names.
+     *
+     * @return The group names
+     */
+    public Set<String> getGroupNames() {
+        return groupMap.keySet();
+    }
+
+    /**
+     * Get the server pool by name.
+     *
+     * @param poolName The pool name, which is the name of the BungeeCord server players connect to
+     * @return The pool, or null if not found
+     */
+    public @Nullable PoolConfig getPoolConfig(String poolName) {
+        return poolMap.get(poolName);
+    }
+
+    /**
+     * Get the pool names.
+     *
+     * @return The pool names
+     */
+    public Set<String> getPoolNames() {
+        return poolMap.keySet();
+    }
+
+    /**
+     * Get the pool the server is an instance of.
+     *
+     * @param serverName The Bungeecord server name
+     * @return The pool, or null if the server is not in a pool
+     */
+    public @Nullable PoolConfig getPoolOf(String serverName) {
+        for (PoolConfig pool : poolMap.values()) {
+            if (pool.servers.contains(serverName)) {
+                return pool;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Check if the target is a glob pattern
+     *
+     * @param target The target
+     * @return true if the target contains "*" or "?"
+     */
+    public static boolean isGlob(String target) {
+        return target.indexOf('*') >= 0 || target.indexOf('?') >= 0;
+    }
+
+    /**
+     * Convert a glob pattern to a regular expression
+     *
+     * @param glob The glob pattern ("*" matches any characters, "?" matches one character)
+     * @return The regular expression
+     */
+    private static Pattern globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (char c : glob.toCharArray()) {
+            if (c == '*' || c == '?') {
+                if (literal.length() > 0) {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                regex.append(c == '*' ? ".*" : ".");
+            } else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        return Pattern.compile(regex.toString());
+    }
+
     private static File makeConfig() throws IOException {
         // Create the data folder if it does not exist
         if (!plugin.getDataFolder().exists()) {
@@ -253,22 +687,39 @@ public class Config {
             }
         }
 
-        // Validate the pterodactyl URL
-        if (pterodactylUrl == null) {
-            sender.sendMessage(plugin.messages.prefix().append("Warning: The Pterodactyl URL in the configuration is not set.").create());
-        }
-        if (pterodactylUrl.getHost().endsWith(".example.com")) {
-            sender.sendMessage(plugin.messages.prefix().append("Warning: The Pterodactyl URL in the configuration is example.com. Please set the correct URL.").create());
-        }
-        // Validate the pterodactyl API key
-        if (pterodactylApiKey == null) {
-            sender.sendMessage(plugin.messages.prefix().append("Warning: The Pterodactyl API key in the configuration is not set.").create());
+        // Validate the pterodactyl panels
+        for (PanelConfig panel : panelMap.values()) {
+            String where = panel.name.equals(PanelConfig.DEFAULT) ? "in the configuration" : String.format("of the panel '%s'", panel.name);
+            // Validate the pterodactyl URL
+            if (panel.url == null || panel.url.getHost() == null) {
+                sender.sendMessage(plugin.messages.prefix().append(String.format("Warning: The Pterodactyl URL %s is not set.", where)).create());
+            } else if (panel.url.getHost().endsWith(".example.com")) {
+                sender.sendMessage(plugin.messages.prefix().append(String.format("Warning: The Pterodactyl URL %s is example.com. Please set the correct URL.", where)).create());
+            }
+            // Validate the pterodactyl API key
+            if (panel.apiKey == null) {
+                sender.sendMessage(plugin.messages.prefix().append(String.format("Warning: The Pterodactyl API key %s is not set.", where)).create());
+            } else if (!panel.apiKey.startsWith("ptlc_")) {
+                sender.sendMessage(plugin.messages.prefix().append("Warning: The Pterodactyl API key should start with 'ptlc_'.").create());
+            } else if (panel.apiKey.startsWith("ptlc_0000")) {
+                sender.sendMessage(plugin.messages.prefix().append(String.format("Warning: The Pterodactyl API key %s is the default key. Please set the correct key.", where)).create());
+            }
         }
-        if (!pterodactylApiKey.startsWith("ptlc_")) {
-            sender.sendMessage(plugin.messages.prefix().append("Warning: The Pterodactyl API key should start with 'ptlc_'.").create());
+
+        // Validate the panels of the servers
+        List<String> unknownPanels = serverMap.entrySet().stream()
+                .filter(entry -> !panelMap.containsKey(entry.getValue().panel))
+                .map(entry -> entry.getKey() + " (" + entry.getValue().panel + ")")
+                .collect(Collectors.toList());
+        if (!unknownPanels.isEmpty()) {
+            sender.sendMessage(plugin.messages.prefix().append(String.format("Warning: The following servers in the configuration are on a panel that is not configured: %s", String.join(", ", unknownPanels))).create());
         }
-        if (pterodactylApiKey.startsWith("ptlc_0000")) {
-            sender.sendMessage(plugin.messages.prefix().append("Warning: The Pterodactyl API key in the configuration is the default key. Please set the correct key.").create());
+
+        // Validate the polling policy
+        try {
+            PollPolicy.of(pollingPolicy, pollingMaxInterval);
+        } catch (IllegalArgumentException e) {
+            sender.sendMessage(plugin.messages.prefix().append(String.format("Warning: Unknown polling policy '%s'. The fixed policy is used instead.", pollingPolicy)).create());
         }
 
         // Validate the server names
@@ -280,6 +731,35 @@ public class Config {
             sender.sendMessage(plugin.messages.prefix().append(String.format("Warning: The following server names in the configuration are not found in the BungeeCord server list: %s", String.join(", ", invalidServerNames))).create());
         }
 
+        // Validate the groups
+        groupMap.forEach((groupName, patterns) -> {
+            List<String> unknown = patterns.stream()
+                    .filter(pattern -> !isGlob(pattern) && !serverMap.containsKey(pattern))
+                    .collect(Collectors.toList());
+            if (!unknown.isEmpty()) {
+                sender.sendMessage(plugin.messages.prefix().append(String.format("Warning: The following servers in the group '%s' are not configured: %s", groupName, String.join(", ", unknown))).create());
+            }
+        });
+
+        // Validate the pools
+        poolMap.values().forEach(pool -> {
+            if (!bungeecordServerNames.containsKey(pool.name)) {
+                sender.sendMessage(plugin.messages.prefix().append(String.format("Warning: The pool '%s' is not found in the BungeeCord server list. Add a server with the same name for players to connect to.", pool.name)).create());
+            }
+            if (serverMap.containsKey(pool.name)) {
+                sender.sendMessage(plugin.messages.prefix().append(String.format("Warning: The pool '%s' has the same name as a server in the configuration. Players are always sent to its instances.", pool.name)).create());
+            }
+            List<String> unknown = pool.servers.stream()
+                    .filter(serverName -> !serverMap.containsKey(serverName))
+                    .collect(Collectors.toList());
+            if (!unknown.isEmpty()) {
+                sender.sendMessage(plugin.messages.prefix().append(String.format("Warning: The following servers in the pool '%s' are not configured: %s", pool.name, String.join(", ", unknown))).create());
+            }
+            if (pool.isAutoscaled() && !(pool.scaleDownAt < pool.scaleUpAt)) {
+                sender.sendMessage(plugin.messages.prefix().append(String.format("Warning: The scaleDownAt of the pool '%s' should be lower than its scaleUpAt, otherwise instances are started and drained over and over.", pool.name)).create());
+            }
+        });
+
         // Check if the power controller is registered
         if (plugin.config.powerControllerType == null) {
             sender.sendMessage(plugin.messages.prefix().append("Warning: The power controller type in the configuration is not set.").create());
@@ -1,56 +1,65 @@
 package com.kamesuta.bungeepteropower;
 
 import net.md_5.bungee.api.ProxyServer;
-import net.md_5.bungee.api.scheduler.ScheduledTask;
 
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import static com.kamesuta.bungeepteropower.BungeePteroPower.logger;
 import static com.kamesuta.bungeepteropower.BungeePteroPower.plugin;
 
 /**
- * Provides a function to stop the server after n seconds
+ * Provides a function to stop the server after n seconds.
+ * The stop tasks are kept on a timing wheel, so that players switching servers only move the deadline of the task
+ * instead of cancelling and scheduling a new one.
  */
 public class DelayManager {
+    /**
+     * The timing wheel driving the stop tasks (one slot per second)
+     */
+    private final TimingWheel wheel = new TimingWheel("BungeePteroPower Stop Timer", 1, TimeUnit.SECONDS, 512,
+            task -> ProxyServer.getInstance().getScheduler().runAsync(plugin, task));
     /**
      * Tasks in progress
      */
-    private final ConcurrentMap<String, ScheduledTask> serverStopTasks = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, StopTask> serverStopTasks = new ConcurrentHashMap<>();
 
     /**
      * Stop the server after a while.
+     * If the server is already scheduled to stop, the deadline and the callback of the task are replaced.
      *
      * @param serverName The name of the server to stop
      * @param timeout    The time in seconds to stop the server
      * @param callback   The callback to be executed after the server is stopped
      */
     public void stopAfterWhile(String serverName, int timeout, Runnable callback) {
-        // Cancel previous task
-        cancelStop(serverName);
-
-        // Stop the server after the auto stop time
-        AtomicInteger taskId = new AtomicInteger();
-        ScheduledTask task = ProxyServer.getInstance().getScheduler().schedule(plugin, () -> {
+        // Move the deadline of the previous task
+        StopTask previous = serverStopTasks.get(serverName);
+        if (previous != null && previous.reschedule(timeout, callback)) {
             // Log
-            logger.info(String.format("Scheduled task executed: stop server %s (task ID: %d, timeout: %d sec)", serverName, taskId.get(), timeout));
+            logger.fine(String.format("Scheduled task rescheduled: stop server %s (timeout: %d sec)", serverName, timeout));
+            return;
+        }
 
-            // Call the callback
-            callback.run();
+        // Register the task
+        StopTask stopTask = new StopTask(serverName, callback);
+        stopTask.deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeout);
+        serverStopTasks.put(serverName, stopTask);
 
-            // Unregister the task
-            serverStopTasks.remove(serverName);
+        // Stop the server after the auto stop time
+        stopTask.timeout = wheel.schedule(timeout, TimeUnit.SECONDS, () -> {
+            // Log
+            logger.info(String.format("Scheduled task executed: stop server %s", serverName));
 
-        }, timeout, TimeUnit.SECONDS);
-        taskId.set(task.getId());
+            // Unregister the task and call the callback
+            stopTask.run();
+        });
 
         // Log
-        logger.info(String.format("Scheduled task registered: stop server %s (task ID: %d, timeout: %d sec)", serverName, taskId.get(), timeout));
-
-        // Register the task
-        serverStopTasks.put(serverName, task);
+        logger.fine(String.format("Scheduled task registered: stop server %s (timeout: %d sec)", serverName, timeout));
     }
 
     /**
@@ -60,12 +69,114 @@ public class DelayManager {
      */
     public void cancelStop(String serverName) {
         // Cancel the task
-        ScheduledTask task = serverStopTasks.remove(serverName);
-        if (task != null) {
+        StopTask stopTask = serverStopTasks.remove(serverName);
+        if (stopTask != null) {
             // Log
-            logger.info(String.format("Scheduled task canceled: stop server %s (task ID: %d)", serverName, task.getId()));
+            logger.fine(String.format("Scheduled task canceled: stop server %s", serverName));
+
+            stopTask.cancel();
+        }
+    }
+
+    /**
+     * Check if a task to stop the server is scheduled.
+     *
+     * @param serverName The name of the server
+     * @return true if the server will be stopped after a while
+     */
+    public boolean isStopScheduled(String serverName) {
+        return serverStopTasks.containsKey(serverName);
+    }
+
+    /**
+     * Get the servers whose stop tasks fire within the given time.
+     *
+     * @param seconds The time in seconds
+     * @return The remaining time in seconds keyed by the server name
+     */
+    public Map<String, Long> getStopsWithin(int seconds) {
+        long now = System.nanoTime();
+        return serverStopTasks.values().stream()
+                .filter(stopTask -> stopTask.deadline - now <= TimeUnit.SECONDS.toNanos(seconds))
+                .collect(Collectors.toMap(stopTask -> stopTask.serverName, stopTask -> Math.max(0, TimeUnit.NANOSECONDS.toSeconds(stopTask.deadline - now))));
+    }
 
-            task.cancel();
+    /**
+     * Run the task to stop the server now instead of waiting for the timeout.
+     *
+     * @param serverName The name of the server to stop
+     * @return true if the task was run
+     */
+    public boolean stopNow(String serverName) {
+        StopTask stopTask = serverStopTasks.get(serverName);
+        if (stopTask == null) {
+            return false;
+        }
+
+        // Log
+        logger.info(String.format("Scheduled task preempted: stop server %s", serverName));
+
+        stopTask.cancel();
+        return stopTask.run();
+    }
+
+    /**
+     * Stop the timer. Pending stop tasks are discarded.
+     */
+    public void close() {
+        wheel.stop();
+    }
+
+    /**
+     * A task to stop a server
+     */
+    private class StopTask {
+        private final String serverName;
+        private volatile Runnable callback;
+        private volatile long deadline;
+        private volatile TimingWheel.Timeout timeout;
+
+        private StopTask(String serverName, Runnable callback) {
+            this.serverName = serverName;
+            this.callback = callback;
+        }
+
+        /**
+         * Move the deadline and replace the callback
+         *
+         * @param seconds  The time in seconds from now
+         * @param callback The new callback
+         * @return false if the task already fired or was cancelled
+         */
+        private boolean reschedule(int seconds, Runnable callback) {
+            // Replace first so that the new callback is called even if the task fires right away
+            this.callback = callback;
+            this.deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            TimingWheel.Timeout wheelTimeout = timeout;
+            return wheelTimeout != null && wheelTimeout.reschedule(seconds, TimeUnit.SECONDS);
+        }
+
+        /**
+         * Cancel the timeout on the wheel
+         */
+        private void cancel() {
+            TimingWheel.Timeout wheelTimeout = timeout;
+            if (wheelTimeout != null) {
+                wheelTimeout.cancel();
+            }
+        }
+
+        /**
+         * Unregister the task and call the callback
+         *
+         * @return true if the callback was called by this invocation
+         */
+        private boolean run() {
+            if (!serverStopTasks.remove(serverName, this)) {
+                return false;
+            }
+            callback.run();
+            return true;
         }
     }
 }
@@ -0,0 +1,312 @@
+package com.kamesuta.bungeepteropower;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import static com.kamesuta.bungeepteropower.BungeePteroPower.logger;
+import static com.kamesuta.bungeepteropower.BungeePteroPower.plugin;
+
+/**
+ * Persistent history of how long servers take to start, stop and restore.
+ * The last {@link #MAX_SAMPLES} durations of each server and phase are kept in a ring, and saved to durations.dat in the data folder.
+ */
+public class DurationHistory {
+    /**
+     * The number of durations kept per server and phase
+     */
+    private static final int MAX_SAMPLES = 32;
+    /**
+     * The number of durations needed before they are used for predictions
+     */
+    private static final int MIN_SAMPLES = 3;
+    /**
+     * Durations longer than this are not recorded (the server was probably started or stopped outside the plugin)
+     */
+    private static final long MAX_DURATION = TimeUnit.HOURS.toMillis(1);
+    /**
+     * The version of the file format
+     */
+    private static final int FILE_VERSION = 1;
+
+    /**
+     * Rings of durations keyed by the server name and phase
+     */
+    private final ConcurrentMap<String, Ring> rings = new ConcurrentHashMap<>();
+    /**
+     * The phase in progress and when it began, keyed by the server name
+     */
+    private final ConcurrentMap<String, Mark> marks = new ConcurrentHashMap<>();
+    /**
+     * The file to save the history to
+     */
+    private final File file;
+
+    /**
+     * What is being timed
+     */
+    public enum Phase {
+        /**
+         * From the start signal until the server becomes pingable
+         */
+        BOOT,
+        /**
+         * From the stop signal until the server becomes offline
+         */
+        STOP,
+        /**
+         * From the stop signal until the backup restore is accepted
+         */
+        RESTORE,
+    }
+
+    /**
+     * Create a new history and load it from the data folder
+     */
+    public DurationHistory() {
+        this.file = new File(plugin.getDataFolder(), "durations.dat");
+        load();
+    }
+
+    /**
+     * Mark the beginning of a phase of the server.
+     * A phase already in progress is kept so that repeated signals do not shorten the duration.
+     *
+     * @param serverName The name of the server
+     * @param phase      The phase
+     */
+    public void begin(String serverName, Phase phase) {
+        marks.compute(serverName, (k, mark) -> mark != null && mark.phase == phase ? mark : new Mark(phase));
+    }
+
+    /**
+     * Forget the phase in progress (e.g. the signal failed)
+     *
+     * @param serverName The name of the server
+     * @param phase      The phase
+     */
+    public void cancel(String serverName, Phase phase) {
+        marks.computeIfPresent(serverName, (k, mark) -> mark.phase == phase ? null : mark);
+    }
+
+    /**
+     * Mark the end of a phase of the server, and record its duration if the phase was in progress
+     *
+     * @param serverName The name of the server
+     * @param phase      The phase
+     */
+    public void end(String serverName, Phase phase) {
+        Mark mark = marks.get(serverName);
+        if (mark == null || mark.phase != phase || !marks.remove(serverName, mark)) {
+            return;
+        }
+        long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mark.startedAt);
+        if (duration > MAX_DURATION) {
+            return;
+        }
+        rings.computeIfAbsent(key(serverName, phase), (k) -> new Ring()).add((int) duration);
+        logger.fine(String.format("Recorded %s duration of %s: %d ms", phase, serverName, duration));
+
+        // Save in the background
+        plugin.getProxy().getScheduler().runAsync(plugin, this::save);
+    }
+
+    /**
+     * Get the time elapsed since the phase in progress began
+     *
+     * @param serverName The name of the server
+     * @param phase      The phase
+     * @return The elapsed time in milliseconds, or null if the phase is not in progress
+     */
+    public @Nullable Long getElapsed(String serverName, Phase phase) {
+        Mark mark = marks.get(serverName);
+        if (mark == null || mark.phase != phase) {
+            return null;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mark.startedAt);
+    }
+
+    /**
+     * Get the recorded durations sorted ascending
+     *
+     * @param serverName The name of the server
+     * @param phase      The phase
+     * @return The durations in milliseconds
+     */
+    public long[] getSamples(String serverName, Phase phase) {
+        Ring ring = rings.get(key(serverName, phase));
+        return ring == null ? new long[0] : ring.sorted();
+    }
+
+    /**
+     * Get a percentile of the recorded durations
+     *
+     * @param serverName The name of the server
+     * @param phase      The phase
+     * @param percentile The percentile (e.g. 50, 95)
+     * @return The duration in milliseconds, or null if not enough durations are recorded
+     */
+    public @Nullable Long getPercentile(String serverName, Phase phase, int percentile) {
+        long[] samples = getSamples(serverName, phase);
+        if (samples.length < MIN_SAMPLES) {
+            return null;
+        }
+        // Nearest rank
+        int rank = (int) Math.ceil(percentile / 100.0 * samples.length);
+        return samples[Math.min(samples.length, Math.max(1, rank)) - 1];
+    }
+
+    /**
+     * Get the number of seconds to wait for the server to start before giving up on moving the player.
+     * The configured startupJoin.timeout, extended for servers that usually take longer to start.
+     *
+     * @param serverName The name of the server
+     * @return The timeout in seconds
+     */
+    public int getStartupJoinTimeout(String serverName) {
+        int timeout = plugin.config.startupJoinTimeout;
+        Long p95 = getPercentile(serverName, Phase.BOOT, 95);
+        if (p95 != null) {
+            timeout = Math.max(timeout, (int) Math.ceil(p95 * 1.5 / 1000));
+        }
+        return timeout;
+    }
+
+    /**
+     * Get the percentiles of all recorded servers
+     *
+     * @return "p50/p95 (count)" in seconds keyed by "server phase"
+     */
+    public Map<String, String> describe() {
+        Map<String, String> result = new TreeMap<>();
+        rings.forEach((key, ring) -> {
+            String[] parts = key.split(":", 2);
+            Phase phase = Phase.valueOf(parts[0]);
+            Long p50 = getPercentile(parts[1], phase, 50);
+            Long p95 = getPercentile(parts[1], phase, 95);
+            int count = ring.sorted().length;
+            result.put(parts[1] + " " + phase.name().toLowerCase(), p50 == null
+                    ? String.format("%d samples", count)
+                    : String.format("p50 %.1f sec, p95 %.1f sec (%d samples)", p50 / 1000.0, p95 / 1000.0, count));
+        });
+        return result;
+    }
+
+    /**
+     * Load the history from the data folder
+     */
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FILE_VERSION) {
+                logger.warning("Unknown format of " + file.getName() + ". The duration history is reset.");
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                int size = in.readUnsignedByte();
+                Ring ring = new Ring();
+                for (int j = 0; j < size; j++) {
+                    ring.add(in.readInt());
+                }
+                rings.put(key, ring);
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to load the duration history", e);
+        }
+    }
+
+    /**
+     * Save the history to the data folder
+     */
+    public synchronized void save() {
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                Map<String, Ring> snapshot = new TreeMap<>(rings);
+                out.writeInt(FILE_VERSION);
+                out.writeInt(snapshot.size());
+                for (Map.Entry<String, Ring> entry : snapshot.entrySet()) {
+                    int[] samples = entry.getValue().toArray();
+                    out.writeUTF(entry.getKey());
+                    out.writeByte(samples.length);
+                    for (int sample : samples) {
+                        out.writeInt(sample);
+                    }
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to save the duration history", e);
+        }
+    }
+
+    private static String key(String serverName, Phase phase) {
+        return phase.name() + ":" + serverName;
+    }
+
+    /**
+     * A phase in progress
+     */
+    private static class Mark {
+        private final Phase phase;
+        private final long startedAt = System.nanoTime();
+
+        private Mark(Phase phase) {
+            this.phase = phase;
+        }
+    }
+
+    /**
+     * Fixed-size ring of durations in milliseconds, oldest overwritten first
+     */
+    private static class Ring {
+        private final int[] samples = new int[MAX_SAMPLES];
+        private int size;
+        private int next;
+
+        private synchronized void add(int duration) {
+            samples[next] = duration;
+            next = (next + 1) % samples.length;
+            size = Math.min(size + 1, samples.length);
+        }
+
+        /**
+         * Get the durations from the oldest to the newest
+         *
+         * @return The durations
+         */
+        private synchronized int[] toArray() {
+            int[] result = new int[size];
+            int start = (next - size + samples.length) % samples.length;
+            for (int i = 0; i < size; i++) {
+                result[i] = samples[(start + i) % samples.length];
+            }
+            return result;
+        }
+
+        private long[] sorted() {
+            long[] result = Arrays.stream(toArray()).asLongStream().toArray();
+            Arrays.sort(result);
+            return result;
+        }
+    }
+}
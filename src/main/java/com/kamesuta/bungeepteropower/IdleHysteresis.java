@@ -0,0 +1,104 @@
+package com.kamesuta.bungeepteropower;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.kamesuta.bungeepteropower.BungeePteroPower.logger;
+import static com.kamesuta.bungeepteropower.BungeePteroPower.plugin;
+
+/**
+ * Stretches the idle stop timeout of servers that players are likely to come back to,
+ * so that a server is not stopped and cold-booted again within seconds.
+ */
+public class IdleHysteresis {
+    /**
+     * When each server was last started, in System.nanoTime()
+     */
+    private final ConcurrentMap<String, Long> startedAt = new ConcurrentHashMap<>();
+    /**
+     * Recent starts of each server, in System.nanoTime(), oldest first
+     */
+    private final ConcurrentMap<String, Deque<Long>> starts = new ConcurrentHashMap<>();
+
+    /**
+     * Record that the server was started
+     *
+     * @param serverName The name of the server
+     */
+    public void onStarted(String serverName) {
+        long now = System.nanoTime();
+        startedAt.put(serverName, now);
+        Deque<Long> recent = starts.computeIfAbsent(serverName, (k) -> new ArrayDeque<>());
+        synchronized (recent) {
+            recent.addLast(now);
+            prune(recent, now);
+        }
+    }
+
+    /**
+     * Get the idle stop timeout to use for the server.
+     * The configured timeout is extended so that:
+     * - the server has been up for at least idleStop.minUptime seconds
+     * - players have at least idleStop.reentryGrace seconds to come back
+     * - servers restarted more than idleStop.flapThreshold times within idleStop.flapWindow wait twice as long for each extra restart
+     *
+     * @param serverName The name of the server
+     * @param timeout    The configured timeout in seconds
+     * @return The timeout in seconds
+     */
+    public int adjust(String serverName, int timeout) {
+        long now = System.nanoTime();
+        int result = Math.max(timeout, plugin.config.idleStopReentryGrace);
+
+        // Minimum uptime guard
+        Long started = startedAt.get(serverName);
+        if (started != null) {
+            long uptime = TimeUnit.NANOSECONDS.toSeconds(now - started);
+            result = (int) Math.max(result, plugin.config.idleStopMinUptime - uptime);
+        }
+
+        // Flap detection
+        int restarts = getRestarts(serverName, now);
+        if (plugin.config.idleStopFlapThreshold > 0 && restarts >= plugin.config.idleStopFlapThreshold) {
+            int stretch = Math.min(restarts - plugin.config.idleStopFlapThreshold + 1, 16);
+            int stretched = (int) Math.min((long) Math.max(1, result) << stretch, Math.max(result, plugin.config.idleStopFlapWindow));
+            logger.fine(String.format("Server %s restarted %d times recently. Idle timeout stretched: %d -> %d sec", serverName, restarts, result, stretched));
+            result = stretched;
+        }
+        return result;
+    }
+
+    /**
+     * Get the number of times the server was restarted within idleStop.flapWindow
+     *
+     * @param serverName The name of the server
+     * @param now        The current time in System.nanoTime()
+     * @return The number of restarts (starts except the first one)
+     */
+    private int getRestarts(String serverName, long now) {
+        Deque<Long> recent = starts.get(serverName);
+        if (recent == null) {
+            return 0;
+        }
+        synchronized (recent) {
+            prune(recent, now);
+            return Math.max(0, recent.size() - 1);
+        }
+    }
+
+    /**
+     * Remove the starts older than idleStop.flapWindow
+     *
+     * @param recent The starts of the server
+     * @param now    The current time in System.nanoTime()
+     */
+    private static void prune(Deque<Long> recent, long now) {
+        long window = TimeUnit.SECONDS.toNanos(plugin.config.idleStopFlapWindow);
+        while (!recent.isEmpty() && now - recent.peekFirst() > window) {
+            recent.removeFirst();
+        }
+    }
+}
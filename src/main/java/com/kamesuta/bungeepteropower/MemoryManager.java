@@ -0,0 +1,182 @@
+package com.kamesuta.bungeepteropower;
+
+import net.md_5.bungee.api.scheduler.ScheduledTask;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import static com.kamesuta.bungeepteropower.BungeePteroPower.logger;
+import static com.kamesuta.bungeepteropower.BungeePteroPower.plugin;
+
+/**
+ * Admission controller for the memory budget (maxMemoryMB).
+ * The memory limits of the managed servers are fetched from the panel periodically,
+ * so that whether a server can be started is answered from the cache without a request.
+ */
+public class MemoryManager {
+    /**
+     * Cached memory limits in MB keyed by the Bungeecord server name
+     */
+    private volatile Map<String, Integer> limits = Collections.emptyMap();
+    /**
+     * Memory reserved by the servers that are starting or running, keyed by the Bungeecord server name
+     */
+    private final ConcurrentMap<String, Integer> reserved = new ConcurrentHashMap<>();
+    /**
+     * Sum of the reserved memory in MB
+     */
+    private int reservedTotal;
+    /**
+     * The refresh task
+     */
+    private ScheduledTask refreshTask;
+
+    /**
+     * Start refreshing the memory limits periodically
+     */
+    public void start() {
+        stop();
+        int interval = Math.max(10, plugin.config.memoryRefreshInterval);
+        refreshTask = plugin.getProxy().getScheduler().schedule(plugin, this::refresh, 0, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop refreshing the memory limits
+     */
+    public void stop() {
+        if (refreshTask != null) {
+            refreshTask.cancel();
+            refreshTask = null;
+        }
+    }
+
+    /**
+     * Whether the memory budget is enabled
+     *
+     * @return true if maxMemoryMB is set
+     */
+    public boolean isEnabled() {
+        return plugin.config.maxMemoryMB > 0;
+    }
+
+    /**
+     * Check if the server can be started within the memory budget.
+     *
+     * @param serverName The name of the server
+     * @return true if the server can be started
+     */
+    public synchronized boolean canStart(String serverName) {
+        if (!isEnabled() || reserved.containsKey(serverName)) {
+            return true;
+        }
+        return reservedTotal + getLimit(serverName) <= plugin.config.maxMemoryMB;
+    }
+
+    /**
+     * Check if the server alone exceeds the memory budget, so that it can never be started.
+     *
+     * @param serverName The name of the server
+     * @return true if the memory limit of the server is larger than the budget
+     */
+    public boolean exceedsBudget(String serverName) {
+        return isEnabled() && getLimit(serverName) > plugin.config.maxMemoryMB;
+    }
+
+    /**
+     * Reserve the memory of the server if it fits in the budget.
+     *
+     * @param serverName The name of the server
+     * @return true if the memory is reserved (or already reserved)
+     */
+    public synchronized boolean tryReserve(String serverName) {
+        if (!canStart(serverName)) {
+            return false;
+        }
+        forceReserve(serverName);
+        return true;
+    }
+
+    /**
+     * Release the memory of the server.
+     *
+     * @param serverName The name of the server
+     */
+    public synchronized void release(String serverName) {
+        Integer memory = reserved.remove(serverName);
+        if (memory != null) {
+            reservedTotal -= memory;
+        }
+    }
+
+    /**
+     * Reserve the memory of the server regardless of the budget (e.g. the server was started outside the plugin)
+     *
+     * @param serverName The name of the server
+     */
+    private synchronized void forceReserve(String serverName) {
+        if (reserved.containsKey(serverName)) {
+            return;
+        }
+        int memory = getLimit(serverName);
+        reserved.put(serverName, memory);
+        reservedTotal += memory;
+    }
+
+    /**
+     * Get the cached memory limit of the server
+     *
+     * @param serverName The name of the server
+     * @return The memory limit in MB, or 0 if unknown
+     */
+    public int getLimit(String serverName) {
+        return limits.getOrDefault(serverName, 0);
+    }
+
+    /**
+     * Get the sum of the reserved memory
+     *
+     * @return The reserved memory in MB
+     */
+    public synchronized int getReservedTotal() {
+        return reservedTotal;
+    }
+
+    /**
+     * Fetch the memory limits from the panels and reconcile the reservations with the known server states
+     */
+    public void refresh() {
+        if (!isEnabled() || !"pterodactyl".equals(plugin.config.powerControllerType)) {
+            return;
+        }
+
+        plugin.pterodactyl.getMemoryLimits().thenAccept(newLimits -> {
+            synchronized (this) {
+                limits = newLimits;
+
+                // Update the reservations with the new limits and the known server states
+                for (String serverName : plugin.config.getServerNames()) {
+                    ServerState state = plugin.states.get(serverName);
+                    boolean hasPlayers = !plugin.occupancy.isEmpty(serverName);
+                    boolean wasReserved = reserved.containsKey(serverName);
+                    release(serverName);
+                    if (hasPlayers || state == ServerState.STARTING || state == ServerState.RUNNING
+                            || (wasReserved && state != ServerState.OFFLINE)) {
+                        forceReserve(serverName);
+                    }
+                }
+            }
+
+            logger.fine(String.format("Memory limits refreshed: %d MB reserved of %d MB", getReservedTotal(), plugin.config.maxMemoryMB));
+
+            // Start queued servers if memory was freed
+            plugin.startQueue.dispatch();
+        }).exceptionally(e -> {
+            logger.log(Level.WARNING, "Failed to refresh memory limits", e);
+            return null;
+        });
+    }
+}
@@ -0,0 +1,179 @@
+package com.kamesuta.bungeepteropower;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import net.md_5.bungee.api.connection.ProxiedPlayer;
+import net.md_5.bungee.api.connection.Server;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.kamesuta.bungeepteropower.BungeePteroPower.plugin;
+
+/**
+ * Counts the players on each server, including the players connecting to it.
+ * Checking whether a server is empty is O(1) and does not copy the player list of the server,
+ * and a server is not considered empty while someone is connecting to it.
+ */
+public class Occupancy {
+    /**
+     * Connecting players are forgotten after this number of seconds if the connection neither succeeds nor fails visibly
+     */
+    private static final int PENDING_TIMEOUT = 30;
+
+    /**
+     * Connected and connecting players, keyed by the server name
+     */
+    private final ConcurrentMap<String, AtomicInteger> counts = new ConcurrentHashMap<>();
+    /**
+     * Connected players only, keyed by the server name
+     */
+    private final ConcurrentMap<String, AtomicInteger> connectedCounts = new ConcurrentHashMap<>();
+    /**
+     * The server each player is connected to, keyed by the player UUID
+     */
+    private final ConcurrentMap<UUID, String> connected = new ConcurrentHashMap<>();
+    /**
+     * The server each player is connecting to, keyed by the player UUID
+     */
+    private final Cache<UUID, String> pending = CacheBuilder.newBuilder()
+            .expireAfterWrite(PENDING_TIMEOUT, TimeUnit.SECONDS)
+            .<UUID, String>removalListener(notification -> {
+                // Count down when the entry expires or is replaced (explicit removals are counted by the caller)
+                if (notification.getCause() != RemovalCause.EXPLICIT) {
+                    decrement(counts, notification.getValue());
+                }
+            })
+            .build();
+
+    /**
+     * Create a new counter with the players already on the proxy
+     */
+    public Occupancy() {
+        for (ProxiedPlayer player : plugin.getProxy().getPlayers()) {
+            Server server = player.getServer();
+            if (server != null) {
+                connected.put(player.getUniqueId(), server.getInfo().getName());
+                increment(counts, server.getInfo().getName());
+                increment(connectedCounts, server.getInfo().getName());
+            }
+        }
+    }
+
+    /**
+     * Called when the player starts connecting to the server
+     *
+     * @param player     The player
+     * @param serverName The name of the server
+     */
+    public void connecting(ProxiedPlayer player, String serverName) {
+        // Replacing a previous pending connect counts it down
+        increment(counts, serverName);
+        pending.put(player.getUniqueId(), serverName);
+    }
+
+    /**
+     * Called when the player connected to the server
+     *
+     * @param player     The player
+     * @param serverName The name of the server
+     */
+    public void connected(ProxiedPlayer player, String serverName) {
+        UUID uuid = player.getUniqueId();
+        // The pending connect turns into the connection without changing the count
+        String pendingServer = pending.asMap().remove(uuid);
+        if (!serverName.equals(pendingServer)) {
+            decrement(counts, pendingServer);
+            increment(counts, serverName);
+        }
+        String previous = connected.put(uuid, serverName);
+        decrement(counts, previous);
+        decrement(connectedCounts, previous);
+        increment(connectedCounts, serverName);
+    }
+
+    /**
+     * Called when the player left the server (kicked or the connect failed)
+     *
+     * @param player     The player
+     * @param serverName The name of the server
+     */
+    public void left(ProxiedPlayer player, String serverName) {
+        UUID uuid = player.getUniqueId();
+        if (connected.remove(uuid, serverName)) {
+            decrement(counts, serverName);
+            decrement(connectedCounts, serverName);
+        }
+        if (pending.asMap().remove(uuid, serverName)) {
+            decrement(counts, serverName);
+        }
+    }
+
+    /**
+     * Called when the player left the proxy
+     *
+     * @param player The player
+     */
+    public void disconnected(ProxiedPlayer player) {
+        UUID uuid = player.getUniqueId();
+        String previous = connected.remove(uuid);
+        decrement(counts, previous);
+        decrement(connectedCounts, previous);
+        decrement(counts, pending.asMap().remove(uuid));
+    }
+
+    /**
+     * Check if nobody is on or connecting to the server
+     *
+     * @param serverName The name of the server
+     * @return true if the server is empty
+     */
+    public boolean isEmpty(String serverName) {
+        // Forget connects that timed out
+        pending.cleanUp();
+        AtomicInteger count = counts.get(serverName);
+        return count == null || count.get() <= 0;
+    }
+
+    /**
+     * Check if a player is connected to the server, not counting the players connecting to it
+     *
+     * @param serverName The name of the server
+     * @return true if a player is connected
+     */
+    public boolean hasConnected(String serverName) {
+        AtomicInteger count = connectedCounts.get(serverName);
+        return count != null && count.get() > 0;
+    }
+
+    /**
+     * Get the number of players on or connecting to the server
+     *
+     * @param serverName The name of the server
+     * @return The number of players
+     */
+    public int getCount(String serverName) {
+        // Forget connects that timed out
+        pending.cleanUp();
+        AtomicInteger count = counts.get(serverName);
+        return count == null ? 0 : Math.max(0, count.get());
+    }
+
+    private static void increment(ConcurrentMap<String, AtomicInteger> counts, String serverName) {
+        counts.computeIfAbsent(serverName, (k) -> new AtomicInteger()).incrementAndGet();
+    }
+
+    private static void decrement(ConcurrentMap<String, AtomicInteger> counts, String serverName) {
+        if (serverName == null) {
+            return;
+        }
+        AtomicInteger count = counts.get(serverName);
+        if (count != null) {
+            count.updateAndGet(value -> Math.max(0, value - 1));
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package com.kamesuta.bungeepteropower;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.kamesuta.bungeepteropower.api.PowerSignal;
+import net.md_5.bungee.api.AbstractReconnectHandler;
 import net.md_5.bungee.api.ChatColor;
 import net.md_5.bungee.api.ProxyServer;
 import net.md_5.bungee.api.chat.ClickEvent;
@@ -8,13 +11,20 @@ import net.md_5.bungee.api.chat.ComponentBuilder;
 import net.md_5.bungee.api.chat.HoverEvent;
 import net.md_5.bungee.api.chat.hover.content.Text;
 import net.md_5.bungee.api.config.ServerInfo;
+import net.md_5.bungee.api.connection.PendingConnection;
 import net.md_5.bungee.api.connection.ProxiedPlayer;
 import net.md_5.bungee.api.connection.Server;
 import net.md_5.bungee.api.event.*;
 import net.md_5.bungee.api.plugin.Listener;
 import net.md_5.bungee.event.EventHandler;
+import net.md_5.bungee.event.EventPriority;
 
+import javax.annotation.Nullable;
+import java.util.List;
+import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 
 import static com.kamesuta.bungeepteropower.BungeePteroPower.logger;
@@ -25,6 +35,24 @@ import static com.kamesuta.bungeepteropower.BungeePteroPower.plugin;
  * Listens player events for auto start and stop the server.
  */
 public class PlayerListener implements Listener {
+    /**
+     * Pings sent while logging in, keyed by the player UUID
+     */
+    private final Cache<UUID, LoginPing> loginPings = CacheBuilder.newBuilder()
+            .expireAfterWrite(1, TimeUnit.MINUTES)
+            .build();
+
+    /**
+     * A ping sent to the initial server while logging in
+     */
+    private static class LoginPing {
+        private final String serverName;
+        private final CompletableFuture<Boolean> offline = new CompletableFuture<>();
+
+        private LoginPing(String serverName) {
+            this.serverName = serverName;
+        }
+    }
 
     @EventHandler
     public void onPlayerLogin(PostLoginEvent event) {
@@ -52,26 +80,101 @@ public class PlayerListener implements Listener {
         }
     }
 
+    @EventHandler
+    public void onLogin(LoginEvent event) {
+        // Ping the initial server while logging in, so that the result is ready when the player connects to it
+        if (!plugin.config.useSynchronousPing || event.isCancelled()) {
+            return;
+        }
+
+        // Get the server the player will join
+        PendingConnection connection = event.getConnection();
+        ServerInfo targetServer = AbstractReconnectHandler.getForcedHost(connection);
+        if (targetServer == null) {
+            List<String> priorities = connection.getListener().getServerPriority();
+            if (priorities.isEmpty()) {
+                return;
+            }
+            targetServer = ProxyServer.getInstance().getServerInfo(priorities.get(0));
+            if (targetServer == null) {
+                return;
+            }
+        }
+        targetServer = placeInPool(targetServer);
+        String serverName = targetServer.getName();
+        if (plugin.config.getServerConfig(serverName) == null || plugin.states.get(serverName) == ServerState.RUNNING) {
+            return;
+        }
+
+        // Hold the login until the ping finishes or the deadline passes, without blocking the thread
+        event.registerIntent(plugin);
+        AtomicBoolean completed = new AtomicBoolean();
+        Runnable completeIntent = () -> {
+            if (completed.compareAndSet(false, true)) {
+                event.completeIntent(plugin);
+            }
+        };
+
+        LoginPing loginPing = new LoginPing(serverName);
+        loginPings.put(connection.getUniqueId(), loginPing);
+        targetServer.ping((result, error) -> {
+            // Remember the result of the ping
+            plugin.states.observePing(serverName, error == null);
+            loginPing.offline.complete(error != null);
+            completeIntent.run();
+        });
+        plugin.getProxy().getScheduler().schedule(plugin, completeIntent, plugin.config.loginPingTimeout, TimeUnit.MILLISECONDS);
+    }
+
     @EventHandler
     public void onServerConnect(ServerConnectEvent event) {
         // Get the target server
         ServerInfo targetServer = event.getTarget();
         ProxiedPlayer player = event.getPlayer();
-        ProxyServer instance = ProxyServer.getInstance();
+
+        // Send the player to an instance if the target is a server pool
+        String poolName = targetServer.getName();
+        targetServer = placeInPool(targetServer);
+        if (!targetServer.getName().equals(poolName)) {
+            event.setTarget(targetServer);
+        }
+
+        // Keep new players off a server that is draining before it stops
+        if (plugin.states.get(targetServer.getName()) == ServerState.DRAINING) {
+            ServerInfo fallback = getDrainFallback(player, targetServer.getName());
+            if (fallback != null) {
+                // Send the player to the fallback server instead
+                player.sendMessage(plugin.messages.warning("join_draining_reroute", targetServer.getName(), fallback.getName()));
+                event.setTarget(fallback);
+                return;
+            } else if (player.getServer() != null) {
+                // Keep the player on the current server
+                player.sendMessage(plugin.messages.warning("join_draining", targetServer.getName()));
+                event.setCancelled(true);
+                return;
+            }
+            // Nowhere else to go, so keep the server running for the player
+            plugin.states.endDrain(targetServer.getName());
+        }
 
         // Cancel the task to stop the server
         String serverName = targetServer.getName();
         plugin.delay.cancelStop(serverName);
 
-        // Permission check
-        boolean autostart = player.hasPermission("ptero.autostart." + serverName);
-        boolean start = player.hasPermission("ptero.start." + serverName);
+        // Learn when the server is in demand
+        if (plugin.config.getServerConfig(serverName) != null) {
+            plugin.prewarm.recordConnect(serverName);
+        }
+
+        // Permission check (the permissions of the pool apply to its instances)
+        boolean autostart = player.hasPermission("ptero.autostart." + serverName) || player.hasPermission("ptero.autostart." + poolName);
+        boolean start = player.hasPermission("ptero.start." + serverName) || player.hasPermission("ptero.start." + poolName);
         if (!autostart && !start) {
             return;
         }
 
         // If anyone is connected to the target server, nothing needs to be done
-        if (!targetServer.getPlayers().isEmpty()) {
+        if (plugin.occupancy.hasConnected(serverName)) {
             return;
         }
 
@@ -81,79 +184,158 @@ public class PlayerListener implements Listener {
             return;
         }
 
+        // If the server is known to be running, connect without pinging it
+        if (plugin.states.get(serverName) == ServerState.RUNNING) {
+            return;
+        }
+
         // Check if the event is a join event
         boolean isLogin = event.getReason() == ServerConnectEvent.Reason.JOIN_PROXY;
         // Send pings to the server synchronously
-        boolean useSynchronousPing = isLogin && plugin.config.useSynchronousPing;
+        if (isLogin && plugin.config.useSynchronousPing) {
+            LoginPing loginPing = loginPings.getIfPresent(player.getUniqueId());
+            loginPings.invalidate(player.getUniqueId());
+            // If the ping sent while logging in has finished, handle the result on this thread without waiting
+            if (loginPing != null && loginPing.serverName.equals(serverName) && loginPing.offline.isDone()) {
+                onPingResult(event, player, serverName, server, autostart, loginPing.offline.join(), true);
+                return;
+            }
+            // Otherwise, the ping missed the deadline and the result is handled asynchronously
+        }
 
         // Ping the target server and check if it is offline
-        CompletableFuture<Void> pingFuture = new CompletableFuture<>();
         targetServer.ping((result, error) -> {
-            try {
-                // The server is offline
-                if (error != null) {
-                    // Start the target server
-                    if (autostart) {
-                        // If synchronous ping is enabled, we can disconnect the player to show a custom message instead of "Could not connect to a default or fallback server".
-                        if (useSynchronousPing) {
-                            // Disconnect the player to show custom message
-                            player.disconnect(new ComponentBuilder(plugin.messages.getMessage("join_autostart_login", serverName)).color(ChatColor.YELLOW).create());
-                        } else {
-                            // Send title and message
-                            player.sendTitle(instance.createTitle()
-                                    .title(new ComponentBuilder(plugin.messages.getMessage("join_autostart_title", serverName)).color(ChatColor.YELLOW).create())
-                                    .subTitle(new ComponentBuilder(plugin.messages.getMessage("join_autostart_subtitle", serverName)).create())
-                            );
-                        }
-
-                        // Send power signal
-                        ServerController.sendPowerSignal(player, serverName, server, PowerSignal.START);
-
-                        // Record statistics
-                        plugin.statistics.actionCounter.increment(Statistics.ActionCounter.ActionType.START_SERVER_AUTOJOIN);
-                        plugin.statistics.startReasonRecorder.recordStart(serverName, Statistics.StartReasonRecorder.StartReason.AUTOJOIN);
-
-                        // If synchronous ping is enabled, we can suppress "Could not connect to a default or fallback server" message
-                        if (useSynchronousPing) {
-                            event.setCancelled(true);
-                        }
+            // Remember the result of the ping
+            plugin.states.observePing(serverName, error == null);
 
-                    } else {
-                        // Send message including the command to start the server
-                        player.sendMessage(plugin.messages.warning("join_start", serverName));
-                        player.sendMessage(new ComponentBuilder()
-                                .append(plugin.messages.success("join_start_button", serverName))
-                                .event(new ClickEvent(ClickEvent.Action.RUN_COMMAND, "/ptero start " + serverName))
-                                .event(new HoverEvent(HoverEvent.Action.SHOW_TEXT, new Text(plugin.messages.getMessage("join_start_button_tooltip", serverName))))
-                                .color(ChatColor.GREEN)
-                                .create());
+            onPingResult(event, player, serverName, server, autostart, error != null, false);
+        });
+    }
 
-                    }
+    /**
+     * Choose the instance to send the player to if the server is a server pool.
+     *
+     * @param targetServer The server the player is connecting to
+     * @return The instance of the pool, or the server itself if it is not a pool or has no instance available
+     */
+    private ServerInfo placeInPool(ServerInfo targetServer) {
+        if (plugin.config.getPoolConfig(targetServer.getName()) == null) {
+            return targetServer;
+        }
+        String instance = plugin.pools.place(targetServer.getName());
+        ServerInfo instanceServer = instance != null ? ProxyServer.getInstance().getServerInfo(instance) : null;
+        return instanceServer != null ? instanceServer : targetServer;
+    }
+
+    /**
+     * Get the server to send the player to instead of a draining server.
+     * The first server in the priority list of the listener that is up, other than the draining server and the current server of the player.
+     *
+     * @param player     The player
+     * @param serverName The name of the draining server
+     * @return The fallback server, or null if there is none
+     */
+    private @Nullable ServerInfo getDrainFallback(ProxiedPlayer player, String serverName) {
+        Server current = player.getServer();
+        for (String name : player.getPendingConnection().getListener().getServerPriority()) {
+            ServerInfo server = ProxyServer.getInstance().getServerInfo(name);
+            if (server == null || name.equals(serverName) || (current != null && current.getInfo().getName().equals(name))) {
+                continue;
+            }
+            // Servers managed by the plugin must be known to be running
+            boolean managed = plugin.config.getServerConfig(name) != null || plugin.config.getPoolConfig(name) != null;
+            if (!managed || plugin.states.get(name) == ServerState.RUNNING) {
+                return server;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Start the server or show the start button if the server is offline.
+     *
+     * @param event              The connect event
+     * @param player             The player connecting to the server
+     * @param serverName         The name of the target server
+     * @param server             The configuration of the target server
+     * @param autostart          Whether the player can start the server automatically
+     * @param offline            Whether the ping failed
+     * @param useSynchronousPing Whether the result is handled while the connect event is being processed
+     */
+    private void onPingResult(ServerConnectEvent event, ProxiedPlayer player, String serverName, Config.ServerConfig server, boolean autostart, boolean offline, boolean useSynchronousPing) {
+        try {
+            // The server is offline
+            if (offline) {
+                // Do not start the server while the panel is down
+                if (autostart && !plugin.config.getPowerController().isAvailable(serverName, server.id)) {
+                    player.sendMessage(plugin.messages.warning("join_panel_unavailable", serverName));
+                    return;
                 }
 
-            } catch (Exception e) {
-                logger.log(Level.WARNING, "Failed to start server process after ping: " + targetServer.getName(), e);
+                // Start the target server
+                if (autostart) {
+                    // If synchronous ping is enabled, we can disconnect the player to show a custom message instead of "Could not connect to a default or fallback server".
+                    if (useSynchronousPing) {
+                        // Disconnect the player to show custom message
+                        player.disconnect(new ComponentBuilder(plugin.messages.getMessage("join_autostart_login", serverName)).color(ChatColor.YELLOW).create());
+                    } else {
+                        // Send title and message
+                        player.sendTitle(ProxyServer.getInstance().createTitle()
+                                .title(new ComponentBuilder(plugin.messages.getMessage("join_autostart_title", serverName)).color(ChatColor.YELLOW).create())
+                                .subTitle(new ComponentBuilder(plugin.messages.getMessage("join_autostart_subtitle", serverName)).create())
+                        );
+                    }
 
-            } finally {
-                // Complete the future
-                pingFuture.complete(null);
+                    // Send power signal
+                    ServerController.sendPowerSignal(player, serverName, server, PowerSignal.START);
 
-            }
-        });
+                    // Record statistics
+                    plugin.statistics.actionCounter.increment(Statistics.ActionCounter.ActionType.START_SERVER_AUTOJOIN);
+                    plugin.statistics.startReasonRecorder.recordStart(serverName, Statistics.StartReasonRecorder.StartReason.AUTOJOIN);
+
+                    // If synchronous ping is enabled, we can suppress "Could not connect to a default or fallback server" message
+                    if (useSynchronousPing) {
+                        event.setCancelled(true);
+                    }
 
-        // Wait until the ping is finished
-        if (useSynchronousPing) {
-            try {
-                pingFuture.get();
-            } catch (Exception e) {
-                logger.log(Level.WARNING, "Failed to wait for the ping of the server: " + targetServer.getName(), e);
+                } else {
+                    // Send message including the command to start the server
+                    player.sendMessage(plugin.messages.warning("join_start", serverName));
+                    player.sendMessage(new ComponentBuilder()
+                            .append(plugin.messages.success("join_start_button", serverName))
+                            .event(new ClickEvent(ClickEvent.Action.RUN_COMMAND, "/ptero start " + serverName))
+                            .event(new HoverEvent(HoverEvent.Action.SHOW_TEXT, new Text(plugin.messages.getMessage("join_start_button_tooltip", serverName))))
+                            .color(ChatColor.GREEN)
+                            .create());
+
+                }
             }
+
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to start server process after ping: " + serverName, e);
         }
     }
 
+    @EventHandler(priority = EventPriority.HIGHEST)
+    public void onServerConnecting(ServerConnectEvent event) {
+        // Count the player on the target server while connecting, unless the connect was cancelled
+        if (!event.isCancelled()) {
+            plugin.occupancy.connecting(event.getPlayer(), event.getTarget().getName());
+        }
+    }
+
+    @EventHandler
+    public void onServerConnected(ServerConnectedEvent event) {
+        // A player could connect to the server, so it is running
+        String serverName = event.getServer().getInfo().getName();
+        plugin.states.observe(serverName, ServerState.RUNNING);
+        plugin.occupancy.connected(event.getPlayer(), serverName);
+    }
+
     @EventHandler(priority = (byte) 1024)
     public void onPlayerDisconnect(PlayerDisconnectEvent event) {
         // Called when a player disconnect from proxy IN the target server
+        plugin.occupancy.disconnected(event.getPlayer());
         Server server = event.getPlayer().getServer();
         if (server == null) {
             // Called when a player is kicked by a plugin or similar before joining the server (ex. VPNCheck plugin)
@@ -168,6 +350,7 @@ public class PlayerListener implements Listener {
     public void onPlayerKicked(ServerKickEvent event) {
         // Called when a player disconnect from proxy IN the target server
         ServerInfo targetServer = event.getKickedFrom();
+        plugin.occupancy.left(event.getPlayer(), targetServer.getName());
 
         onPlayerQuit(event.getPlayer(), targetServer);
     }
@@ -192,14 +375,13 @@ public class PlayerListener implements Listener {
      */
     private void onPlayerQuit(ProxiedPlayer player, ServerInfo targetServer) {
         // If you are last player on the target server, stop the server after a while
-        // Check if the server is empty, or only you are on the server
-        if (!(targetServer.getPlayers().isEmpty()
-                || targetServer.getPlayers().size() == 1 && targetServer.getPlayers().contains(player))) {
+        // Check if nobody is on or connecting to the server
+        String serverName = targetServer.getName();
+        if (!plugin.occupancy.isEmpty(serverName)) {
             return;
         }
 
         // Get the auto stop time
-        String serverName = targetServer.getName();
         // Get the Pterodactyl server ID
         Config.ServerConfig server = plugin.config.getServerConfig(serverName);
         if (server == null) {
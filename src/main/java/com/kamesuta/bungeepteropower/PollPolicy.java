@@ -0,0 +1,138 @@
+package com.kamesuta.bungeepteropower;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides how long to wait before polling a server again while waiting for it to start or stop.
+ */
+public interface PollPolicy {
+    /**
+     * Get the name of the policy used in the configuration and statistics
+     *
+     * @return The name of the policy
+     */
+    String getName();
+
+    /**
+     * Get the delay before the next poll
+     *
+     * @param interval The configured ping interval in milliseconds
+     * @param attempt  The number of polls done so far (starting from 1)
+     * @param elapsed  The milliseconds elapsed since the wait began
+     * @param samples  The past durations of the same wait for the server in milliseconds, sorted ascending
+     * @return The delay in milliseconds
+     */
+    long nextDelay(long interval, int attempt, long elapsed, long[] samples);
+
+    /**
+     * Get the policy by the name
+     *
+     * @param name        The name of the policy (fixed, exponential, learned)
+     * @param maxInterval The maximum delay in milliseconds
+     * @return The policy
+     * @throws IllegalArgumentException If the name is unknown
+     */
+    static PollPolicy of(String name, long maxInterval) {
+        switch (name) {
+            case "fixed":
+                return new Fixed();
+            case "exponential":
+                return new Exponential(maxInterval);
+            case "learned":
+                return new Learned(maxInterval);
+            default:
+                throw new IllegalArgumentException("Unknown polling policy: " + name);
+        }
+    }
+
+    /**
+     * Poll at the configured interval
+     */
+    class Fixed implements PollPolicy {
+        @Override
+        public String getName() {
+            return "fixed";
+        }
+
+        @Override
+        public long nextDelay(long interval, int attempt, long elapsed, long[] samples) {
+            return interval;
+        }
+    }
+
+    /**
+     * Start at the configured interval and double it up to the maximum, with random jitter
+     * so that servers started together do not poll in lockstep
+     */
+    class Exponential implements PollPolicy {
+        private final long maxInterval;
+
+        public Exponential(long maxInterval) {
+            this.maxInterval = maxInterval;
+        }
+
+        @Override
+        public String getName() {
+            return "exponential";
+        }
+
+        @Override
+        public long nextDelay(long interval, int attempt, long elapsed, long[] samples) {
+            // interval * 2^(attempt - 1), capped
+            long cap = Math.max(interval, maxInterval);
+            long delay = interval << Math.min(Math.max(0, attempt - 1), 20);
+            delay = Math.min(cap, Math.max(interval, delay));
+            // Equal jitter: between half and the full delay
+            long half = delay / 2;
+            return half + ThreadLocalRandom.current().nextLong(half + 1);
+        }
+    }
+
+    /**
+     * Poll densely around the durations the server took in the past, and sparsely in between.
+     * The next poll is placed at the next past duration that has not elapsed yet.
+     * Until enough durations are known, or once all of them have elapsed, it behaves like {@link Exponential}.
+     */
+    class Learned implements PollPolicy {
+        /**
+         * The number of past durations needed to use them
+         */
+        private static final int MIN_SAMPLES = 3;
+        /**
+         * The minimum delay between polls in milliseconds
+         */
+        private static final long MIN_DELAY = 1000;
+
+        private final long maxInterval;
+        private final Exponential fallback;
+
+        public Learned(long maxInterval) {
+            this.maxInterval = maxInterval;
+            this.fallback = new Exponential(maxInterval);
+        }
+
+        @Override
+        public String getName() {
+            return "learned";
+        }
+
+        @Override
+        public long nextDelay(long interval, int attempt, long elapsed, long[] samples) {
+            if (samples.length < MIN_SAMPLES) {
+                return fallback.nextDelay(interval, attempt, elapsed, samples);
+            }
+
+            // Find the first past duration at least MIN_DELAY from now
+            int index = Arrays.binarySearch(samples, elapsed + MIN_DELAY);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            if (index >= samples.length) {
+                // Slower than ever seen, back off from the slowest one
+                return fallback.nextDelay(interval, attempt, elapsed - samples[samples.length - 1], samples);
+            }
+            return Math.min(Math.max(interval, maxInterval), samples[index] - elapsed);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.kamesuta.bungeepteropower;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.kamesuta.bungeepteropower.BungeePteroPower.plugin;
+
+/**
+ * Schedules the polls while waiting for servers to start or stop, using the configured {@link PollPolicy}.
+ * The learned policy uses the durations recorded in {@link DurationHistory}. Keeps statistics of each policy.
+ */
+public class Polling {
+    /**
+     * Statistics keyed by the policy name
+     */
+    private final ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<>();
+
+    /**
+     * Begin a wait for the server
+     *
+     * @param serverName The name of the server
+     * @param phase      What the wait is for
+     * @param interval   The configured ping interval in seconds
+     * @return The schedule of the polls
+     */
+    public Schedule begin(String serverName, DurationHistory.Phase phase, int interval) {
+        PollPolicy policy;
+        try {
+            policy = PollPolicy.of(plugin.config.pollingPolicy, TimeUnit.SECONDS.toMillis(plugin.config.pollingMaxInterval));
+        } catch (IllegalArgumentException e) {
+            // Warned in Config#validateConfig
+            policy = new PollPolicy.Fixed();
+        }
+        return new Schedule(serverName, phase, policy, TimeUnit.SECONDS.toMillis(interval));
+    }
+
+    /**
+     * Get the statistics of each policy used so far
+     *
+     * @return The statistics keyed by the policy name
+     */
+    public Map<String, Stats> getStats() {
+        return new TreeMap<>(stats);
+    }
+
+    /**
+     * The polls of a single wait
+     */
+    public class Schedule {
+        private final String serverName;
+        private final DurationHistory.Phase phase;
+        private final PollPolicy policy;
+        private final long interval;
+        private final long startedAt = System.nanoTime();
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private int attempt;
+
+        private Schedule(String serverName, DurationHistory.Phase phase, PollPolicy policy, long interval) {
+            this.serverName = serverName;
+            this.phase = phase;
+            this.policy = policy;
+            this.interval = interval;
+        }
+
+        /**
+         * Get the delay before the next poll
+         *
+         * @return The delay in milliseconds
+         */
+        public synchronized long nextDelay() {
+            attempt++;
+            stats(policy).polls.incrementAndGet();
+            // Measure from the signal if known, so that the time matches the recorded durations
+            Long sinceSignal = plugin.history.getElapsed(serverName, phase);
+            long elapsed = sinceSignal != null ? sinceSignal : getElapsed();
+            return policy.nextDelay(interval, attempt, elapsed, plugin.history.getSamples(serverName, phase));
+        }
+
+        /**
+         * Finish the wait. Only the first call has an effect.
+         *
+         * @param success true if the server reached the state waited for
+         */
+        public void finish(boolean success) {
+            if (!finished.compareAndSet(false, true)) {
+                return;
+            }
+            Stats policyStats = stats(policy);
+            (success ? policyStats.succeeded : policyStats.failed).incrementAndGet();
+            if (success) {
+                policyStats.waitedMillis.addAndGet(getElapsed());
+            }
+        }
+
+        /**
+         * Get the milliseconds elapsed since the wait began
+         *
+         * @return The elapsed time in milliseconds
+         */
+        private long getElapsed() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+        }
+
+        private Stats stats(PollPolicy policy) {
+            return stats.computeIfAbsent(policy.getName(), (k) -> new Stats());
+        }
+    }
+
+    /**
+     * Statistics of a policy
+     */
+    public static class Stats {
+        private final AtomicLong polls = new AtomicLong();
+        private final AtomicLong succeeded = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong waitedMillis = new AtomicLong();
+
+        /**
+         * Get the number of polls rescheduled
+         *
+         * @return The number of polls
+         */
+        public long getPolls() {
+            return polls.get();
+        }
+
+        /**
+         * Get the number of waits that reached the state waited for
+         *
+         * @return The number of successful waits
+         */
+        public long getSucceeded() {
+            return succeeded.get();
+        }
+
+        /**
+         * Get the number of waits that timed out or were abandoned
+         *
+         * @return The number of failed waits
+         */
+        public long getFailed() {
+            return failed.get();
+        }
+
+        /**
+         * Get the average duration of the successful waits
+         *
+         * @return The average duration in milliseconds
+         */
+        public long getAverageWaitMillis() {
+            long count = succeeded.get();
+            return count == 0 ? 0 : waitedMillis.get() / count;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package com.kamesuta.bungeepteropower;
+
+import com.kamesuta.bungeepteropower.api.PowerSignal;
+import net.md_5.bungee.api.CommandSender;
+import net.md_5.bungee.api.scheduler.ScheduledTask;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.stream.Collectors;
+
+import static com.kamesuta.bungeepteropower.BungeePteroPower.logger;
+import static com.kamesuta.bungeepteropower.BungeePteroPower.plugin;
+
+/**
+ * Starts and drains the instances of server pools as the players come and go.
+ * The occupancy of each pool (players per slot of the instances that are up) is checked on a periodic tick.
+ * Above scaleUpAt another instance is started; below scaleDownAt the least crowded instance is drained:
+ * no new players are placed on it, and it is stopped by the idle stop once its players have left.
+ * Decisions use the last known state of the instances, and expired states are refreshed from the power controller on the tick,
+ * so that the pool does not look empty whenever the state cache expires.
+ */
+public class PoolAutoscaler {
+    /**
+     * Instances being drained
+     */
+    private final Set<String> draining = ConcurrentHashMap.newKeySet();
+    /**
+     * When each pool was last scaled, in System.nanoTime(), keyed by the pool name
+     */
+    private final ConcurrentMap<String, Long> lastScaledAt = new ConcurrentHashMap<>();
+    /**
+     * Number of instances started by autoscaling
+     */
+    private final AtomicLong scaledUpCount = new AtomicLong();
+    /**
+     * Number of instances drained by autoscaling
+     */
+    private final AtomicLong scaledDownCount = new AtomicLong();
+    /**
+     * The tick task
+     */
+    private ScheduledTask tickTask;
+
+    /**
+     * Start checking the pools periodically
+     */
+    public void start() {
+        stop();
+        boolean autoscaled = plugin.config.getPoolNames().stream()
+                .anyMatch(poolName -> plugin.config.getPoolConfig(poolName).isAutoscaled());
+        if (!autoscaled) {
+            draining.clear();
+            return;
+        }
+        int interval = Math.max(5, plugin.config.poolAutoscaleInterval);
+        tickTask = plugin.getProxy().getScheduler().schedule(plugin, this::tick, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop checking the pools
+     */
+    public void stop() {
+        if (tickTask != null) {
+            tickTask.cancel();
+            tickTask = null;
+        }
+    }
+
+    /**
+     * Whether the instance is being drained, so that no new players should be placed on it
+     *
+     * @param serverName The name of the server
+     * @return true if the instance is being drained
+     */
+    public boolean isDraining(String serverName) {
+        return draining.contains(serverName);
+    }
+
+    /**
+     * Get the number of instances started by autoscaling
+     *
+     * @return The number of instances
+     */
+    public long getScaledUpCount() {
+        return scaledUpCount.get();
+    }
+
+    /**
+     * Get the number of instances drained by autoscaling
+     *
+     * @return The number of instances
+     */
+    public long getScaledDownCount() {
+        return scaledDownCount.get();
+    }
+
+    /**
+     * Check every autoscaled pool
+     */
+    private void tick() {
+        for (String poolName : plugin.config.getPoolNames()) {
+            Config.PoolConfig pool = plugin.config.getPoolConfig(poolName);
+            if (pool == null || !pool.isAutoscaled()) {
+                continue;
+            }
+            try {
+                scale(pool);
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Failed to autoscale pool: " + poolName, e);
+            }
+        }
+    }
+
+    /**
+     * Start or drain an instance of the pool if the occupancy is out of the range
+     *
+     * @param pool The pool
+     */
+    private void scale(Config.PoolConfig pool) {
+        List<String> instances = plugin.pools.getInstances(pool);
+        refresh(instances);
+
+        // Forget the drained instances that have stopped
+        draining.removeIf(serverName -> instances.contains(serverName) && !isUp(serverName));
+
+        List<String> up = instances.stream()
+                .filter(serverName -> isUp(serverName) && !draining.contains(serverName))
+                .collect(Collectors.toList());
+        int players = instances.stream().mapToInt(plugin.occupancy::getCount).sum();
+        int maxInstances = pool.maxInstances > 0 ? Math.min(pool.maxInstances, instances.size()) : instances.size();
+
+        // Keep the minimum number of instances up, one at a time
+        if (up.size() < Math.min(pool.minInstances, maxInstances)) {
+            if (up.stream().noneMatch(serverName -> plugin.states.getLastKnown(serverName) == ServerState.STARTING)) {
+                scaleUp(pool, players, up.size());
+            }
+            return;
+        }
+
+        // The first instance is started when a player joins
+        if (up.isEmpty()) {
+            return;
+        }
+
+        // Let the last change settle before deciding again
+        Long scaledAt = lastScaledAt.get(pool.name);
+        if (scaledAt != null && System.nanoTime() - scaledAt < TimeUnit.SECONDS.toNanos(pool.cooldown)) {
+            return;
+        }
+
+        double occupancy = players / (double) (up.size() * pool.playersPerInstance);
+        if (occupancy >= pool.scaleUpAt && up.size() < maxInstances) {
+            // Wait for the instances that are starting to take players first
+            if (up.stream().noneMatch(serverName -> plugin.states.getLastKnown(serverName) == ServerState.STARTING)) {
+                scaleUp(pool, players, up.size());
+            }
+        } else if (occupancy < pool.scaleDownAt && up.size() > Math.max(1, pool.minInstances)
+                && players < (up.size() - 1) * pool.playersPerInstance * pool.scaleUpAt) {
+            // Drain only if the remaining instances stay below scaleUpAt, so that it is not scaled up again right away
+            scaleDown(pool, players, up);
+        }
+    }
+
+    /**
+     * Take back an instance being drained, or start an offline instance on the least loaded node
+     *
+     * @param pool    The pool
+     * @param players The number of players in the pool
+     * @param up      The number of instances that are up
+     */
+    private void scaleUp(Config.PoolConfig pool, int players, int up) {
+        // An instance that is still running is ready right away
+        Optional<String> drained = pool.servers.stream()
+                .filter(serverName -> draining.contains(serverName) && plugin.states.getLastKnown(serverName) == ServerState.RUNNING)
+                .findFirst();
+        if (drained.isPresent()) {
+            draining.remove(drained.get());
+            lastScaledAt.put(pool.name, System.nanoTime());
+            logger.info(String.format("Scaling up pool %s: taking back %s (%d players on %d instances)", pool.name, drained.get(), players, up));
+            return;
+        }
+
+        // Do not take memory from players waiting in the queue
+        if (plugin.startQueue.getQueuedCount() > 0) {
+            return;
+        }
+        String serverName = plugin.pools.chooseToStart(pool);
+        Config.ServerConfig server = serverName != null ? plugin.config.getServerConfig(serverName) : null;
+        if (server == null || !plugin.memory.canStart(serverName)) {
+            return;
+        }
+
+        lastScaledAt.put(pool.name, System.nanoTime());
+        scaledUpCount.incrementAndGet();
+        logger.info(String.format("Scaling up pool %s: starting %s (%d players on %d instances)", pool.name, serverName, players, up));
+        plugin.statistics.startReasonRecorder.recordStart(serverName, Statistics.StartReasonRecorder.StartReason.AUTOSCALE);
+        ServerController.sendPowerSignal(plugin.getProxy().getConsole(), serverName, server, PowerSignal.START);
+    }
+
+    /**
+     * Drain the least crowded running instance.
+     * Instances that are never stopped when idle (timeout -1) are not drained.
+     *
+     * @param pool    The pool
+     * @param players The number of players in the pool
+     * @param up      The instances that are up and not being drained
+     */
+    private void scaleDown(Config.PoolConfig pool, int players, List<String> up) {
+        Optional<String> victim = up.stream()
+                .filter(serverName -> plugin.states.getLastKnown(serverName) == ServerState.RUNNING)
+                .filter(serverName -> plugin.config.getServerConfig(serverName).timeout >= 0)
+                .min(Comparator.comparingInt(plugin.occupancy::getCount));
+        if (victim.isEmpty()) {
+            return;
+        }
+        String serverName = victim.get();
+
+        draining.add(serverName);
+        lastScaledAt.put(pool.name, System.nanoTime());
+        scaledDownCount.incrementAndGet();
+        logger.info(String.format("Scaling down pool %s: draining %s (%d players on %d instances)", pool.name, serverName, players, up.size()));
+
+        // An empty instance is stopped by the idle stop right away, otherwise when its last player leaves
+        if (plugin.occupancy.isEmpty(serverName) && !plugin.delay.isStopScheduled(serverName)) {
+            CommandSender console = plugin.getProxy().getConsole();
+            ServerController.stopAfterWhile(console, serverName, plugin.config.getServerConfig(serverName), PowerSignal.STOP);
+        }
+    }
+
+    /**
+     * Ask the power controller for the instances whose state has expired.
+     * The answers are recorded in the state registry and used from the next tick.
+     *
+     * @param instances The instances of the pool
+     */
+    private static void refresh(List<String> instances) {
+        for (String serverName : instances) {
+            if (plugin.states.get(serverName) == null) {
+                plugin.statusFeed.getStatus(serverName).exceptionally(e -> {
+                    logger.log(Level.FINE, "Failed to refresh the state of server: " + serverName, e);
+                    return null;
+                });
+            }
+        }
+    }
+
+    /**
+     * Whether the instance is up or has players
+     *
+     * @param serverName The name of the server
+     * @return true if the instance is starting or running, or players are on it
+     */
+    private static boolean isUp(String serverName) {
+        ServerState state = plugin.states.getLastKnown(serverName);
+        return state == ServerState.STARTING || state == ServerState.RUNNING || !plugin.occupancy.isEmpty(serverName);
+    }
+}
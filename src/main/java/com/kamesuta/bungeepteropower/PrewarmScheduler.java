@@ -0,0 +1,275 @@
+package com.kamesuta.bungeepteropower;
+
+import com.kamesuta.bungeepteropower.api.PowerSignal;
+import net.md_5.bungee.api.scheduler.ScheduledTask;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.ZonedDateTime;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import static com.kamesuta.bungeepteropower.BungeePteroPower.logger;
+import static com.kamesuta.bungeepteropower.BungeePteroPower.plugin;
+
+/**
+ * Starts servers shortly before the hours they are usually busy, and keeps them running during those hours.
+ * The demand of each server is learned per hour of the week from the connects to it, and saved to demand.dat in the data folder.
+ */
+public class PrewarmScheduler {
+    /**
+     * The number of hours in a week
+     */
+    private static final int HOURS_PER_WEEK = 7 * 24;
+    /**
+     * The weight of the latest week in the average demand
+     */
+    private static final double ALPHA = 0.3;
+    /**
+     * The version of the file format
+     */
+    private static final int FILE_VERSION = 1;
+
+    /**
+     * Average connects per hour of the week, keyed by the server name
+     */
+    private final ConcurrentMap<String, double[]> demand = new ConcurrentHashMap<>();
+    /**
+     * Connects in the current hour, keyed by the server name
+     */
+    private final ConcurrentMap<String, AtomicInteger> connects = new ConcurrentHashMap<>();
+    /**
+     * The file to save the demand to
+     */
+    private final File file;
+    /**
+     * The hour of the week the connects are counted for
+     */
+    private int currentHour = hourOfWeek(ZonedDateTime.now());
+    /**
+     * The tick task
+     */
+    private ScheduledTask tickTask;
+
+    /**
+     * Create a new scheduler and load the demand from the data folder
+     */
+    public PrewarmScheduler() {
+        this.file = new File(plugin.getDataFolder(), "demand.dat");
+        load();
+    }
+
+    /**
+     * Start checking for servers to pre-warm every minute
+     */
+    public void start() {
+        stop();
+        if (!plugin.config.prewarmEnabled) {
+            return;
+        }
+        tickTask = plugin.getProxy().getScheduler().schedule(plugin, this::tick, 1, 1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Stop checking for servers to pre-warm, and save the demand
+     */
+    public void stop() {
+        if (tickTask != null) {
+            tickTask.cancel();
+            tickTask = null;
+            save();
+        }
+    }
+
+    /**
+     * Record a connect to the server
+     *
+     * @param serverName The name of the server
+     */
+    public void recordConnect(String serverName) {
+        if (!plugin.config.prewarmEnabled) {
+            return;
+        }
+        connects.computeIfAbsent(serverName, (k) -> new AtomicInteger()).incrementAndGet();
+    }
+
+    /**
+     * Whether the server is expected to be busy now, so that it should not be stopped when idle
+     *
+     * @param serverName The name of the server
+     * @return true if the server is usually busy in this hour
+     */
+    public boolean isBusy(String serverName) {
+        return plugin.config.prewarmEnabled && isBusyAt(serverName, ZonedDateTime.now());
+    }
+
+    /**
+     * Get the number of busy hours of the week of each server
+     *
+     * @return The number of busy hours of the week keyed by the server name
+     */
+    public Map<String, Integer> getBusyHours() {
+        Map<String, Integer> result = new TreeMap<>();
+        demand.forEach((serverName, hours) -> {
+            int count = 0;
+            for (double average : hours) {
+                if (average >= plugin.config.prewarmMinConnects) {
+                    count++;
+                }
+            }
+            result.put(serverName, count);
+        });
+        return result;
+    }
+
+    /**
+     * Fold the connects of the past hour into the demand, and start the servers that will be busy soon
+     */
+    private void tick() {
+        ZonedDateTime now = ZonedDateTime.now();
+
+        // Fold the connects of the past hour into the demand
+        int hour = hourOfWeek(now);
+        if (hour != currentHour) {
+            int pastHour = currentHour;
+            currentHour = hour;
+            for (String serverName : plugin.config.getServerNames()) {
+                AtomicInteger count = connects.remove(serverName);
+                double[] hours = demand.computeIfAbsent(serverName, (k) -> new double[HOURS_PER_WEEK]);
+                synchronized (hours) {
+                    hours[pastHour] = hours[pastHour] * (1 - ALPHA) + (count == null ? 0 : count.get()) * ALPHA;
+                }
+            }
+            plugin.getProxy().getScheduler().runAsync(plugin, this::save);
+        }
+
+        // Start the servers that will be busy soon
+        for (String serverName : plugin.config.getServerNames()) {
+            // Start early enough for the server to boot
+            Long p95 = plugin.history.getPercentile(serverName, DurationHistory.Phase.BOOT, 95);
+            long lead = Math.max(plugin.config.prewarmLeadTime, p95 == null ? 0 : TimeUnit.MILLISECONDS.toSeconds(p95));
+            if (isBusyAt(serverName, now) || isBusyAt(serverName, now.plusSeconds(lead))) {
+                prewarm(serverName);
+            }
+        }
+    }
+
+    /**
+     * Start the server ahead of the demand if it is not running
+     *
+     * @param serverName The name of the server
+     */
+    private void prewarm(String serverName) {
+        Config.ServerConfig server = plugin.config.getServerConfig(serverName);
+        if (server == null || plugin.getProxy().getServerInfo(serverName) == null || !plugin.occupancy.isEmpty(serverName)) {
+            return;
+        }
+
+        // Skip servers that are up (a pending idle stop means the server is running)
+        ServerState state = plugin.states.get(serverName);
+        if ((state != null && state != ServerState.OFFLINE) || plugin.delay.isStopScheduled(serverName)) {
+            return;
+        }
+
+        // Do not take memory from players waiting in the queue
+        if (plugin.startQueue.getQueuedCount() > 0 || !plugin.memory.canStart(serverName)) {
+            return;
+        }
+
+        logger.info("Pre-warming server for the expected demand: " + serverName);
+        plugin.statistics.startReasonRecorder.recordStart(serverName, Statistics.StartReasonRecorder.StartReason.PREWARM);
+        ServerController.sendPowerSignal(plugin.getProxy().getConsole(), serverName, server, PowerSignal.START);
+    }
+
+    /**
+     * Whether the server is usually busy at the time
+     *
+     * @param serverName The name of the server
+     * @param time       The time
+     * @return true if the average connects of the hour reach prewarm.minConnects
+     */
+    private boolean isBusyAt(String serverName, ZonedDateTime time) {
+        double[] hours = demand.get(serverName);
+        if (hours == null) {
+            return false;
+        }
+        synchronized (hours) {
+            return hours[hourOfWeek(time)] >= plugin.config.prewarmMinConnects;
+        }
+    }
+
+    /**
+     * Get the hour of the week
+     *
+     * @param time The time
+     * @return 0 for Monday 0:00 to 167 for Sunday 23:00
+     */
+    private static int hourOfWeek(ZonedDateTime time) {
+        return (time.getDayOfWeek().getValue() - 1) * 24 + time.getHour();
+    }
+
+    /**
+     * Load the demand from the data folder
+     */
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FILE_VERSION) {
+                logger.warning("Unknown format of " + file.getName() + ". The demand history is reset.");
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String serverName = in.readUTF();
+                double[] hours = new double[HOURS_PER_WEEK];
+                for (int hour = 0; hour < HOURS_PER_WEEK; hour++) {
+                    hours[hour] = in.readFloat();
+                }
+                demand.put(serverName, hours);
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to load the demand history", e);
+        }
+    }
+
+    /**
+     * Save the demand to the data folder
+     */
+    private synchronized void save() {
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                Map<String, double[]> snapshot = new TreeMap<>(demand);
+                out.writeInt(FILE_VERSION);
+                out.writeInt(snapshot.size());
+                for (Map.Entry<String, double[]> entry : snapshot.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    double[] hours = entry.getValue();
+                    synchronized (hours) {
+                        for (double average : hours) {
+                            out.writeFloat((float) average);
+                        }
+                    }
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to save the demand history", e);
+        }
+    }
+}
@@ -2,13 +2,20 @@ package com.kamesuta.bungeepteropower;
 
 import com.google.common.collect.ImmutableList;
 import com.kamesuta.bungeepteropower.api.PowerSignal;
+import com.kamesuta.bungeepteropower.power.PterodactylCircuitBreaker;
+import com.kamesuta.bungeepteropower.power.PterodactylClient;
+import com.kamesuta.bungeepteropower.power.PterodactylRateLimiter;
 import net.md_5.bungee.api.CommandSender;
 import net.md_5.bungee.api.plugin.Command;
 import net.md_5.bungee.api.plugin.TabExecutor;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static com.kamesuta.bungeepteropower.BungeePteroPower.plugin;
 
@@ -58,14 +65,75 @@ public class PteroCommand extends Command implements TabExecutor {
 
                 break;
 
+            case "stats": {
+                // Permission check
+                if (!sender.hasPermission("ptero.stats")) {
+                    sender.sendMessage(plugin.messages.error("command_insufficient_permission"));
+                    return;
+                }
+
+                // Show internal statistics
+                sendStats(sender, "stats_http_clients", PterodactylClient.getBuildCount());
+                plugin.pterodactyl.getClients().forEach((panel, client) -> {
+                    sendStats(sender, "stats_http_client", panel, client.getRequestCount(), client.getHttp2Count());
+                    PterodactylRateLimiter limiter = client.getLimiter();
+                    sendStats(sender, "stats_rate_limit", panel, limiter.getQueuedCount(), limiter.getExpiredCount(), limiter.getThrottledCount());
+                    PterodactylCircuitBreaker breaker = client.getBreaker();
+                    sendStats(sender, "stats_panel", panel, breaker.getState().name().toLowerCase(), breaker.getOpenedCount(), breaker.getRejectedCount());
+                    client.getRetry().getStats().forEach((operation, stats) -> sendStats(sender, "stats_retry",
+                            operation, panel, Arrays.toString(stats.getAttempts()), stats.getFailures(), stats.getBudgetExhausted()));
+                });
+                sendStats(sender, "stats_power_signals", plugin.coalescer.getSentCount(), plugin.coalescer.getDeduplicatedCount());
+                sendStats(sender, "stats_start_queue", plugin.startQueue.getQueuedCount(), plugin.startQueue.getStartingCount());
+                plugin.polling.getStats().forEach((policy, stats) -> sendStats(sender, "stats_polling",
+                        policy, stats.getPolls(), stats.getSucceeded(), stats.getAverageWaitMillis() / 1000.0, stats.getFailed()));
+                plugin.history.describe().forEach((key, value) -> sendStats(sender, "stats_durations", key, value));
+                if (plugin.config.prewarmEnabled) {
+                    plugin.prewarm.getBusyHours().forEach((serverName, hours) -> sendStats(sender, "stats_prewarm", serverName, hours));
+                }
+                if (!plugin.config.getPoolNames().isEmpty()) {
+                    sendStats(sender, "stats_pool_autoscaling", plugin.autoscaler.getScaledUpCount(), plugin.autoscaler.getScaledDownCount());
+                }
+                if (plugin.memory.isEnabled()) {
+                    sendStats(sender, "stats_memory_budget", plugin.memory.getReservedTotal(), plugin.config.maxMemoryMB);
+                }
+
+                break;
+            }
+
             case "start":
             case "stop": {
-                // args[1] is the server name
+                // args[1] is the server name, a glob pattern or @group
                 if (args.length < 2) {
                     sender.sendMessage(plugin.messages.warning("command_" + subCommand + "_usage"));
                     return;
                 }
-                String serverName = args[1];
+                String target = args[1];
+
+                // Signal
+                PowerSignal signal = subCommand.equals("start")
+                        ? PowerSignal.START
+                        : PowerSignal.STOP;
+
+                // Send the signal to the servers matching the pattern or in the group
+                if (target.startsWith("@") || Config.isGlob(target)) {
+                    // Only the servers the sender has permission to
+                    Map<String, PowerSignal> signals = new LinkedHashMap<>();
+                    for (String serverName : plugin.config.resolveServerNames(target)) {
+                        if (sender.hasPermission("ptero." + subCommand + "." + serverName)) {
+                            signals.put(serverName, signal);
+                        }
+                    }
+                    if (signals.isEmpty()) {
+                        sender.sendMessage(plugin.messages.error("command_no_matching_servers", target));
+                        return;
+                    }
+
+                    signals.keySet().forEach(serverName -> onPowerCommand(serverName, signal));
+                    ServerController.sendPowerSignals(sender, signals);
+                    break;
+                }
+                String serverName = target;
 
                 // Permission check
                 if (!sender.hasPermission("ptero." + subCommand + "." + serverName)) {
@@ -80,28 +148,10 @@ public class PteroCommand extends Command implements TabExecutor {
                     return;
                 }
 
-                // Signal
-                PowerSignal signal = subCommand.equals("start")
-                        ? PowerSignal.START
-                        : PowerSignal.STOP;
-
-                // Cancel existing stop task
-                if (signal == PowerSignal.STOP) {
-                    plugin.delay.cancelStop(serverName);
-                }
-
                 // Send signal and auto join
+                onPowerCommand(serverName, signal);
                 ServerController.sendPowerSignal(sender, serverName, server, signal);
 
-                // Record statistics
-                if (signal == PowerSignal.START) {
-                    plugin.statistics.actionCounter.increment(Statistics.ActionCounter.ActionType.START_SERVER_COMMAND);
-                    plugin.statistics.startReasonRecorder.recordStart(serverName, Statistics.StartReasonRecorder.StartReason.COMMAND);
-                } else {
-                    plugin.statistics.actionCounter.increment(Statistics.ActionCounter.ActionType.STOP_SERVER_COMMAND);
-                    plugin.statistics.startReasonRecorder.recordStop(serverName);
-                }
-
                 break;
             }
 
@@ -112,6 +162,39 @@ public class PteroCommand extends Command implements TabExecutor {
         }
     }
 
+    /**
+     * Cancel the pending stop task and record statistics before sending the signal from the command
+     *
+     * @param serverName The name of the server
+     * @param signal     The power signal to send
+     */
+    private static void onPowerCommand(String serverName, PowerSignal signal) {
+        // Cancel existing stop task
+        if (signal == PowerSignal.STOP) {
+            plugin.delay.cancelStop(serverName);
+        }
+
+        // Record statistics
+        if (signal == PowerSignal.START) {
+            plugin.statistics.actionCounter.increment(Statistics.ActionCounter.ActionType.START_SERVER_COMMAND);
+            plugin.statistics.startReasonRecorder.recordStart(serverName, Statistics.StartReasonRecorder.StartReason.COMMAND);
+        } else {
+            plugin.statistics.actionCounter.increment(Statistics.ActionCounter.ActionType.STOP_SERVER_COMMAND);
+            plugin.statistics.startReasonRecorder.recordStop(serverName);
+        }
+    }
+
+    /**
+     * Send a line of internal statistics
+     *
+     * @param sender The command sender
+     * @param key    The message key of the line
+     * @param args   The message arguments
+     */
+    private static void sendStats(CommandSender sender, String key, Object... args) {
+        sender.sendMessage(plugin.messages.info(key, args));
+    }
+
     @Override
     public Iterable<String> onTabComplete(CommandSender sender, String[] args) {
         if (args.length == 1) {
@@ -129,6 +212,10 @@ public class PteroCommand extends Command implements TabExecutor {
                 }
             }
 
+            if (sender.hasPermission("ptero.stats") && "stats".startsWith(partialCommand)) {
+                completions.add("stats");
+            }
+
             if ("start".startsWith(partialCommand)) {
                 completions.add("start");
             }
@@ -143,11 +230,14 @@ public class PteroCommand extends Command implements TabExecutor {
             // /ptero command <tab>
             String subCommand = args[0];
             if (subCommand.equalsIgnoreCase("start") || subCommand.equalsIgnoreCase("stop")) {
-                // Complete server names that the sender has permission to
-                return plugin.config.getServerNames().stream()
-                        .filter(name -> name.startsWith(args[1]))
+                // Complete server names that the sender has permission to, and the groups
+                Stream<String> serverNames = plugin.config.getServerNames().stream()
                         .filter(name -> sender.hasPermission("ptero." + subCommand + "." + name))
-                        .filter(name -> plugin.config.getServerConfig(name) != null)
+                        .filter(name -> plugin.config.getServerConfig(name) != null);
+                Stream<String> groupNames = plugin.config.getGroupNames().stream()
+                        .map(name -> "@" + name);
+                return Stream.concat(serverNames, groupNames)
+                        .filter(name -> name.startsWith(args[1]))
                         .collect(Collectors.toList());
             }
 
@@ -155,4 +245,4 @@ public class PteroCommand extends Command implements TabExecutor {
 
         return ImmutableList.of();
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,284 @@
+package com.kamesuta.bungeepteropower;
+
+import com.kamesuta.bungeepteropower.api.PowerStatus;
+import com.kamesuta.bungeepteropower.api.PowerStatusListener;
+import net.md_5.bungee.api.Callback;
+import net.md_5.bungee.api.ServerPing;
+import net.md_5.bungee.api.config.ServerInfo;
+import net.md_5.bungee.api.connection.ProxiedPlayer;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.kamesuta.bungeepteropower.BungeePteroPower.logger;
+import static com.kamesuta.bungeepteropower.BungeePteroPower.plugin;
+
+/**
+ * Watches starting servers and notifies waiting players when they become pingable.
+ * Only one ping loop runs per server regardless of how many players are waiting for it.
+ */
+public class ReadinessWatcher {
+    /**
+     * Watches in progress
+     */
+    private final ConcurrentMap<String, Watch> watches = new ConcurrentHashMap<>();
+
+    /**
+     * Wait until the server is started, and then move the player to the server.
+     *
+     * @param serverInfo The server to wait for
+     * @param player     The player to move to the server once it is started, or null to only wait
+     * @return A future that completes when the server is started, or fails if the player timed out
+     */
+    public CompletableFuture<Void> onceStarted(ServerInfo serverInfo, @Nullable ProxiedPlayer player) {
+        return onceStarted(serverInfo, player, plugin.config.startupJoinTimeout);
+    }
+
+    /**
+     * Wait until the server is started, and then move the player to the server.
+     *
+     * @param serverInfo The server to wait for
+     * @param player     The player to move to the server once it is started, or null to only wait
+     * @param timeout    The number of seconds to wait
+     * @return A future that completes when the server is started, or fails if timed out
+     */
+    public CompletableFuture<Void> onceStarted(ServerInfo serverInfo, @Nullable ProxiedPlayer player, int timeout) {
+        Subscriber subscriber = new Subscriber(player);
+        String serverName = serverInfo.getName();
+
+        // Subscribe to the watch of the server, or start a new one
+        while (true) {
+            Watch watch = watches.computeIfAbsent(serverName, (k) -> new Watch(serverInfo));
+            synchronized (watch) {
+                if (watch.done) {
+                    // The watch is finishing, retry with a new one
+                    continue;
+                }
+                watch.subscribers.add(subscriber);
+            }
+
+            // Unsubscribe when the player timed out
+            subscriber.future.orTimeout(timeout, TimeUnit.SECONDS)
+                    .exceptionally(e -> {
+                        watch.unsubscribe(subscriber);
+                        return null;
+                    });
+
+            watch.start();
+            return subscriber.future;
+        }
+    }
+
+    /**
+     * A player waiting for the server
+     */
+    private static class Subscriber {
+        private final @Nullable ProxiedPlayer player;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private Subscriber(@Nullable ProxiedPlayer player) {
+            this.player = player;
+        }
+    }
+
+    /**
+     * A ping loop shared by all players waiting for the server
+     */
+    private class Watch implements Callback<ServerPing>, PowerStatusListener {
+        private final ServerInfo serverInfo;
+        private final List<Subscriber> subscribers = new ArrayList<>();
+        private boolean started;
+        private boolean done;
+        /**
+         * Whether a ping is in flight
+         */
+        private boolean pinging;
+        /**
+         * Whether the power status is pushed from the power controller
+         */
+        private boolean streaming;
+        /**
+         * Whether the power controller reported that the server is running
+         */
+        private boolean runningSeen;
+        /**
+         * Handle to unsubscribe from the status feed
+         */
+        private @Nullable Runnable unsubscribe;
+        /**
+         * Schedule of the pings
+         */
+        private final Polling.Schedule schedule;
+
+        private Watch(ServerInfo serverInfo) {
+            this.serverInfo = serverInfo;
+            this.schedule = plugin.polling.begin(serverInfo.getName(), DurationHistory.Phase.BOOT, plugin.config.pingInterval);
+        }
+
+        /**
+         * Start the ping loop if it is not started yet
+         */
+        private void start() {
+            synchronized (this) {
+                if (started || done) {
+                    return;
+                }
+                started = true;
+            }
+
+            // Wait for the status pushed from the power controller instead of polling if available
+            Runnable handle = plugin.statusFeed.subscribe(serverInfo.getName(), this);
+            synchronized (this) {
+                unsubscribe = handle;
+                streaming = handle != null;
+            }
+            // Everyone may have timed out while subscribing
+            if (done) {
+                closeStream();
+            }
+
+            // Initial check
+            ping();
+        }
+
+        /**
+         * Ping the server unless a ping is already in flight
+         */
+        private void ping() {
+            synchronized (this) {
+                if (done || pinging) {
+                    return;
+                }
+                pinging = true;
+            }
+            serverInfo.ping(this);
+        }
+
+        /**
+         * Remove a subscriber, and stop the ping loop if nobody is waiting anymore
+         *
+         * @param subscriber The subscriber to remove
+         */
+        private void unsubscribe(Subscriber subscriber) {
+            synchronized (this) {
+                subscribers.remove(subscriber);
+                if (!subscribers.isEmpty()) {
+                    return;
+                }
+                finish();
+            }
+            schedule.finish(false);
+            closeStream();
+        }
+
+        /**
+         * Mark the watch as done and unregister it
+         */
+        private void finish() {
+            done = true;
+            watches.remove(serverInfo.getName(), this);
+        }
+
+        /**
+         * Stop receiving the pushed status
+         */
+        private void closeStream() {
+            Runnable handle;
+            synchronized (this) {
+                handle = unsubscribe;
+                unsubscribe = null;
+            }
+            if (handle != null) {
+                handle.run();
+            }
+        }
+
+        @Override
+        public void onStatus(PowerStatus status) {
+            // Ping as soon as the power controller reports the server is running
+            if (status == PowerStatus.RUNNING) {
+                synchronized (this) {
+                    runningSeen = true;
+                }
+                ping();
+            }
+        }
+
+        @Override
+        public void onClosed() {
+            // Fall back to polling
+            synchronized (this) {
+                streaming = false;
+            }
+            ping();
+        }
+
+        @Override
+        public void done(ServerPing serverPing, Throwable throwable) {
+            List<Subscriber> ready;
+            synchronized (this) {
+                pinging = false;
+                // Do nothing if everyone timed out
+                if (done) {
+                    return;
+                }
+                if (throwable != null || serverPing == null) {
+                    // Wait for the power controller to report the server is running
+                    if (streaming && !runningSeen) {
+                        return;
+                    }
+                    // Otherwise schedule another ping
+                    plugin.getProxy().getScheduler().schedule(plugin, this::ping, schedule.nextDelay(), TimeUnit.MILLISECONDS);
+                    return;
+                }
+                // The server is started
+                ready = new ArrayList<>(subscribers);
+                finish();
+            }
+            plugin.history.end(serverInfo.getName(), DurationHistory.Phase.BOOT);
+            schedule.finish(true);
+            closeStream();
+            plugin.states.observe(serverInfo.getName(), ServerState.RUNNING);
+
+            logger.fine(String.format("Server %s is started. Notifying %d waiting players", serverInfo.getName(), ready.size()));
+            joinAll(ready);
+        }
+
+        /**
+         * Move all waiting players to the started server at once
+         *
+         * @param ready The subscribers to notify
+         */
+        private void joinAll(List<Subscriber> ready) {
+            String serverName = serverInfo.getName();
+            List<ProxiedPlayer> players = new ArrayList<>();
+            for (Subscriber subscriber : ready) {
+                if (subscriber.future.complete(null) && subscriber.player != null) {
+                    players.add(subscriber.player);
+                }
+            }
+            if (players.isEmpty()) {
+                return;
+            }
+
+            if (plugin.config.joinDelay > 0) {
+                // Delay the join
+                for (ProxiedPlayer player : players) {
+                    player.sendMessage(plugin.messages.success("server_startup_join_move_delayed", serverName, plugin.config.joinDelay));
+                }
+                plugin.getProxy().getScheduler().schedule(plugin, () -> players.forEach(player -> player.connect(serverInfo)), plugin.config.joinDelay, TimeUnit.SECONDS);
+            } else {
+                // Join immediately
+                for (ProxiedPlayer player : players) {
+                    player.connect(serverInfo);
+                    player.sendMessage(plugin.messages.success("server_startup_join_move", serverName));
+                }
+            }
+        }
+    }
+}
@@ -1,22 +1,34 @@
 package com.kamesuta.bungeepteropower;
 
 import com.kamesuta.bungeepteropower.api.PowerController;
+import com.kamesuta.bungeepteropower.api.PowerControllerUnavailableException;
 import com.kamesuta.bungeepteropower.api.PowerSignal;
-import net.md_5.bungee.api.Callback;
 import net.md_5.bungee.api.CommandSender;
-import net.md_5.bungee.api.ServerPing;
 import net.md_5.bungee.api.config.ServerInfo;
 import net.md_5.bungee.api.connection.ProxiedPlayer;
 
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.TimeUnit;
 
+import static com.kamesuta.bungeepteropower.BungeePteroPower.logger;
 import static com.kamesuta.bungeepteropower.BungeePteroPower.plugin;
 
 /**
  * Provides a function to send power signals to the server and join the server when it is started
  */
 public class ServerController {
+    /**
+     * The interval in milliseconds to check whether the connects to a draining server have settled
+     */
+    private static final long DRAIN_CHECK_INTERVAL = 500;
 
     /**
      * Send a power signal to the server and join the server when it is started
@@ -27,32 +39,179 @@ public class ServerController {
      * @param signalType The power signal to send
      */
     public static void sendPowerSignal(CommandSender sender, String serverName, Config.ServerConfig server, PowerSignal signalType) {
-        // Get signal
-        String signal = signalType.getSignal();
-
-        //MemoryManager memoryManager = plugin.memory;
-
-         //memoryManager.getTotalMemory();
+        sendPowerSignal(sender, serverName, server, signalType, false);
+    }
 
-        plugin.config.getServerNames();
+    /**
+     * Send a power signal to the server
+     *
+     * @param sender     The command sender
+     * @param serverName The name of the server to send the signal
+     * @param server     The server configuration to send the signal to
+     * @param signalType The power signal to send
+     * @param batch      Whether the signal is part of a command to many servers, so that the sender is not moved to the server
+     */
+    static void sendPowerSignal(CommandSender sender, String serverName, Config.ServerConfig server, PowerSignal signalType, boolean batch) {
+        PendingSignal pending = begin(sender, serverName, server, signalType, batch);
+        if (pending == null) {
+            return;
+        }
 
         // Send power signal
         CompletableFuture<Void> future;
         PowerController powerController = plugin.config.getPowerController();
-        if (signalType == PowerSignal.STOP && server.backupId != null && !server.backupId.isEmpty()) {
+        if (pending.merged) {
+            // The server is already in or moving to the state
+            future = CompletableFuture.completedFuture(null);
+        } else if (pending.restore) {
             // Restore from backup if the backup ID is specified
-            future = powerController.sendRestoreSignal(serverName, server.id, server.backupId);
+            future = plugin.coalescer.sendRestoreSignal(powerController, serverName, server.id, server.backupId);
         } else {
-            // Otherwise, send power signal
-            future = powerController.sendPowerSignal(serverName, server.id, signalType);
+            // Otherwise, send power signal (concurrent identical signals are coalesced into one request)
+            future = plugin.coalescer.sendPowerSignal(powerController, serverName, server.id, signalType);
         }
+        finish(pending, future);
+    }
+
+    /**
+     * Send power signals to many servers at once.
+     * Each server goes through the same checks as {@link #sendPowerSignal}, and the plain start/stop signals are sent in a single batch.
+     * The sender is not moved to the started servers, and gets one summary instead of a message per server.
+     *
+     * @param sender  The command sender
+     * @param signals The power signals to send, keyed by the name of the server
+     */
+    public static void sendPowerSignals(CommandSender sender, Map<String, PowerSignal> signals) {
+        Map<PowerSignal, List<CompletableFuture<Boolean>>> results = new EnumMap<>(PowerSignal.class);
+        Map<PowerSignal, Integer> requested = new EnumMap<>(PowerSignal.class);
+        Map<String, PendingSignal> pendings = new HashMap<>();
+        Map<String, PowerSignal> batch = new LinkedHashMap<>();
+        PowerController powerController = plugin.config.getPowerController();
+        signals.forEach((serverName, signalType) -> {
+            Config.ServerConfig server = plugin.config.getServerConfig(serverName);
+            if (server == null) {
+                sender.sendMessage(plugin.messages.error("command_server_not_configured", serverName));
+                return;
+            }
+            requested.merge(signalType, 1, Integer::sum);
+            PendingSignal pending = begin(sender, serverName, server, signalType, true);
+            if (pending == null) {
+                return;
+            }
+
+            List<CompletableFuture<Boolean>> signalResults = results.computeIfAbsent(signalType, (k) -> new ArrayList<>());
+            if (pending.merged) {
+                // The server is already in or moving to the state
+                signalResults.add(finish(pending, CompletableFuture.completedFuture(null)));
+            } else if (pending.restore) {
+                // Restores are not part of the batch API
+                signalResults.add(finish(pending, plugin.coalescer.sendRestoreSignal(powerController, serverName, server.id, server.backupId)));
+            } else {
+                pendings.put(serverName, pending);
+                batch.put(serverName, signalType);
+            }
+        });
+        // Send the plain signals in one batch
+        if (!batch.isEmpty()) {
+            plugin.coalescer.sendPowerSignals(powerController, batch).forEach((serverName, future) -> {
+                PendingSignal pending = pendings.get(serverName);
+                results.get(pending.signalType).add(finish(pending, future));
+            });
+        }
+
+        // Tell the sender how many servers accepted the signal once all are done
+        results.forEach((signalType, signalResults) -> CompletableFuture.allOf(signalResults.toArray(new CompletableFuture<?>[0]))
+                .thenRun(() -> {
+                    long succeeded = signalResults.stream().filter(CompletableFuture::join).count();
+                    sender.sendMessage(plugin.messages.success("server_" + signalType.getSignal() + "_batch", succeeded, requested.get(signalType)));
+                }));
+    }
+
+    /**
+     * Check and move the state of the server before sending the power signal
+     *
+     * @param sender     The command sender
+     * @param serverName The name of the server to send the signal
+     * @param server     The server configuration to send the signal to
+     * @param signalType The power signal to send
+     * @param batch      Whether the signal is part of a command to many servers
+     * @return The signal to send, or null if the signal is rejected or queued
+     */
+    private static @Nullable PendingSignal begin(CommandSender sender, String serverName, Config.ServerConfig server, PowerSignal signalType, boolean batch) {
+        // Get signal
+        String signal = signalType.getSignal();
+
+        // Refuse to start the server if it can never fit in the memory budget
+        if (signalType == PowerSignal.START && plugin.memory.exceedsBudget(serverName)) {
+            sender.sendMessage(plugin.messages.error("server_start_memory_exceeded", serverName));
+            return null;
+        }
+
+        // Move the state of the server, merging or rejecting conflicting signals
+        boolean restore = signalType == PowerSignal.STOP && server.backupId != null && !server.backupId.isEmpty();
+        ServerState target = signalType == PowerSignal.START ? ServerState.STARTING : restore ? ServerState.RESTORING : ServerState.STOPPING;
+        ServerStateRegistry.Transition transition = plugin.states.begin(serverName, signalType, restore);
+        if (transition == ServerStateRegistry.Transition.REJECTED) {
+            sender.sendMessage(plugin.messages.warning("server_" + signal + "_rejected", serverName));
+            return null;
+        }
+        boolean merged = transition == ServerStateRegistry.Transition.MERGED;
+
+        // Queue the start if too many servers are starting or there is not enough memory
+        if (signalType == PowerSignal.START && !merged && !plugin.startQueue.tryAdmit(sender, serverName, server, batch)) {
+            plugin.states.fail(serverName, target);
+            return null;
+        }
+
+        // Time how long the server takes to reach the state
+        DurationHistory.Phase phase = signalType == PowerSignal.START ? DurationHistory.Phase.BOOT : restore ? DurationHistory.Phase.RESTORE : DurationHistory.Phase.STOP;
+        if (!merged) {
+            plugin.history.begin(serverName, phase);
+        }
+
+        return new PendingSignal(sender, serverName, server, signalType, batch, restore, merged, target, phase);
+    }
+
+    /**
+     * Handle the result of the power signal
+     *
+     * @param pending The signal sent
+     * @param future  The future of the request
+     * @return A future that completes with whether the signal succeeded
+     */
+    private static CompletableFuture<Boolean> finish(PendingSignal pending, CompletableFuture<Void> future) {
+        CommandSender sender = pending.sender;
+        String serverName = pending.serverName;
+        PowerSignal signalType = pending.signalType;
+        String signal = signalType.getSignal();
 
         // After the power signal is sent
-        future.thenRun(() -> {
+        return future.thenApply(v -> {
+            // The panel accepted the transition
+            if (!pending.merged) {
+                plugin.states.complete(serverName, pending.target);
+                if (signalType == PowerSignal.START) {
+                    plugin.idle.onStarted(serverName);
+                }
+            }
+
             if (signalType == PowerSignal.STOP) {
                 // When stopping the server
-                sender.sendMessage(plugin.messages.success("server_stop", serverName));
-                return;
+                if (pending.restore) {
+                    plugin.history.end(serverName, DurationHistory.Phase.RESTORE);
+                }
+                plugin.memory.release(serverName);
+                plugin.startQueue.dispatch();
+                if (!pending.batch) {
+                    sender.sendMessage(plugin.messages.success("server_stop", serverName));
+                }
+                return true;
+            }
+
+            // A command to many servers only stops them if nobody joins, and the summary is sent by the caller
+            if (pending.batch) {
+                stopAfterWhile(sender, serverName, pending.server, signalType, false);
+                return true;
             }
 
             // Start auto stop task and send warning
@@ -60,26 +219,21 @@ public class ServerController {
                 // If auto join is configured, join the server when it is started
                 sender.sendMessage(plugin.messages.success("server_startup_join", serverName));
 
+                // Tell how long the server usually takes to start
+                Long p50 = plugin.history.getPercentile(serverName, DurationHistory.Phase.BOOT, 50);
+                Long p95 = plugin.history.getPercentile(serverName, DurationHistory.Phase.BOOT, 95);
+                if (p50 != null && p95 != null) {
+                    sender.sendMessage(plugin.messages.success("server_startup_join_eta", serverName,
+                            Math.max(1, Math.round(p50 / 1000.0)), Math.max(1, Math.round(p95 / 1000.0))));
+                }
+
                 // Get the server info
                 ServerInfo serverInfo = plugin.getProxy().getServerInfo(serverName);
                 // ServerInfo is null if the server is not found on bungeecord config
                 if (serverInfo != null) {
-                    // Wait until the server is started
-                    onceStarted(serverInfo).thenRun(() -> {
-                        // Move player to the started server
-                        ProxiedPlayer player = (ProxiedPlayer) sender;
-                        if (plugin.config.joinDelay > 0) {
-                            // Delay the join
-                            plugin.getProxy().getScheduler().schedule(plugin, () -> player.connect(serverInfo), plugin.config.joinDelay, TimeUnit.SECONDS);
-                            // Send a message
-                            player.sendMessage(plugin.messages.success("server_startup_join_move_delayed", serverName, plugin.config.joinDelay));
-                        } else {
-                            // Join immediately
-                            player.connect(serverInfo);
-                            // Send a message
-                            player.sendMessage(plugin.messages.success("server_startup_join_move", serverName));
-                        }
-                    }).exceptionally((Throwable e) -> {
+                    // Wait until the server is started, and then move the player to the server
+                    // Players waiting for the same server share a single ping loop
+                    plugin.readiness.onceStarted(serverInfo, (ProxiedPlayer) sender, plugin.history.getStartupJoinTimeout(serverName)).exceptionally((Throwable e) -> {
                         sender.sendMessage(plugin.messages.warning("server_startup_join_failed", serverName));
                         return null;
                     });
@@ -91,11 +245,26 @@ public class ServerController {
             }
 
             // Stop the server if nobody joins after a while
-            stopAfterWhile(sender, serverName, server, signalType);
+            stopAfterWhile(sender, serverName, pending.server, signalType);
+            return true;
 
         }).exceptionally(e -> {
-            sender.sendMessage(plugin.messages.error("server_" + signal + "_failed", serverName));
-            return null;
+            plugin.states.fail(serverName, pending.target);
+            plugin.history.cancel(serverName, pending.phase);
+
+            // Give back the memory reserved for the server that could not be started
+            if (signalType == PowerSignal.START) {
+                plugin.memory.release(serverName);
+                plugin.startQueue.onStartFailed(serverName);
+            }
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof PowerControllerUnavailableException) {
+                // The panel is down, so the signal was not even sent
+                sender.sendMessage(plugin.messages.error("server_panel_unavailable", serverName));
+            } else {
+                sender.sendMessage(plugin.messages.error("server_" + signal + "_failed", serverName));
+            }
+            return false;
 
         });
     }
@@ -109,58 +278,162 @@ public class ServerController {
      * @param signalType Is this executed while stopping or starting?
      */
     public static void stopAfterWhile(CommandSender sender, String serverName, Config.ServerConfig server, PowerSignal signalType) {
+        stopAfterWhile(sender, serverName, server, signalType, true);
+    }
+
+    /**
+     * Stop the server after a while
+     *
+     * @param sender     The command sender
+     * @param serverName The name of the server to stop
+     * @param server     The server configuration to stop
+     * @param signalType Is this executed while stopping or starting?
+     * @param warn       Whether to tell the sender when the server will be stopped
+     */
+    private static void stopAfterWhile(CommandSender sender, String serverName, Config.ServerConfig server, PowerSignal signalType, boolean warn) {
         // Get signal
         String signal = signalType.getSignal();
 
         // Get the auto stop time
         int serverTimeout = server.timeout;
-        if (serverTimeout == 0) return;
+        if (serverTimeout < 0) return;
 
         // When on starting, use the start timeout additionally
         if (signalType == PowerSignal.START) {
             serverTimeout += plugin.config.startTimeout;
         }
 
+        // Do not stop servers that were just started or that players are likely to come back to
+        serverTimeout = plugin.idle.adjust(serverName, serverTimeout);
+
         // Stop the server after a while
+        scheduleStop(sender, serverName, server, serverTimeout);
+
+        // Send message
+        if (warn) {
+            sender.sendMessage(plugin.messages.warning("server_" + signal + "_warning", serverName, serverTimeout));
+        }
+    }
+
+    /**
+     * Schedule the idle stop of the server
+     *
+     * @param sender        The command sender
+     * @param serverName    The name of the server to stop
+     * @param server        The server configuration to stop
+     * @param serverTimeout The time in seconds to stop the server
+     */
+    private static void scheduleStop(CommandSender sender, String serverName, Config.ServerConfig server, int serverTimeout) {
         plugin.delay.stopAfterWhile(serverName, serverTimeout, () -> {
-            // Stop the server
-            sendPowerSignal(sender, serverName, server, PowerSignal.STOP);
+            // Keep the server running while it is usually busy, unless servers are waiting for its memory
+            if (plugin.prewarm.isBusy(serverName) && plugin.startQueue.getQueuedCount() == 0) {
+                scheduleStop(sender, serverName, server, Math.max(60, server.timeout));
+                return;
+            }
 
-            // Record statistics
-            plugin.statistics.actionCounter.increment(Statistics.ActionCounter.ActionType.STOP_SERVER_NOBODY);
-            plugin.statistics.startReasonRecorder.recordStop(serverName);
+            // Stop the server once the connects in flight have settled
+            drainAndStop(sender, serverName, server);
         });
-
-        // Send message
-        sender.sendMessage(plugin.messages.warning("server_" + signal + "_warning", serverName, serverTimeout));
     }
 
     /**
-     * Wait until the server is started
+     * Drain the idle server, and then stop it.
+     * While draining, new players are sent elsewhere, and the players already connecting are waited for up to idleStop.drainTimeout seconds.
+     * If one of them makes it in, the server is in use again and keeps running.
      *
-     * @param serverInfo The server to wait for
-     * @return A future that completes when the server is started
+     * @param sender     The command sender
+     * @param serverName The name of the server to stop
+     * @param server     The server configuration to stop
      */
-    private static CompletableFuture<Void> onceStarted(ServerInfo serverInfo) {
-        CompletableFuture<Void> future = new CompletableFuture<Void>().orTimeout(plugin.config.startupJoinTimeout, TimeUnit.SECONDS);
-        Callback<ServerPing> callback = new Callback<>() {
+    private static void drainAndStop(CommandSender sender, String serverName, Config.ServerConfig server) {
+        if (plugin.config.idleStopDrainTimeout <= 0 || !plugin.states.beginDrain(serverName)) {
+            stopIdle(sender, serverName, server);
+            return;
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(plugin.config.idleStopDrainTimeout);
+        new Runnable() {
             @Override
-            public void done(ServerPing serverPing, Throwable throwable) {
-                // Do nothing if timeout or already completed
-                if (future.isDone()) {
+            public void run() {
+                // Do nothing if the drain was called off (e.g. by a start command) or the server is being stopped already
+                ServerState state = plugin.states.get(serverName);
+                if (state != null && state != ServerState.DRAINING) {
+                    return;
+                }
+
+                // A player made it in, so the server is in use again
+                if (plugin.occupancy.hasConnected(serverName)) {
+                    logger.info("Server is in use again while draining, not stopping: " + serverName);
+                    plugin.states.endDrain(serverName);
                     return;
                 }
-                // Complete if the ping was successful
-                if (throwable == null && serverPing != null) {
-                    future.complete(null);
+
+                // Stop when nobody is connecting anymore or the deadline passed
+                if (plugin.occupancy.isEmpty(serverName) || System.nanoTime() - deadline >= 0) {
+                    stopIdle(sender, serverName, server);
                     return;
                 }
-                // Otherwise schedule another ping
-                plugin.getProxy().getScheduler().schedule(plugin, () -> serverInfo.ping(this), plugin.config.pingInterval, TimeUnit.SECONDS);
+                plugin.getProxy().getScheduler().schedule(plugin, this, DRAIN_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
             }
-        };
-        serverInfo.ping(callback);
-        return future;
+        }.run();
     }
 
+    /**
+     * Stop the idle server
+     *
+     * @param sender     The command sender
+     * @param serverName The name of the server to stop
+     * @param server     The server configuration to stop
+     */
+    private static void stopIdle(CommandSender sender, String serverName, Config.ServerConfig server) {
+        // Stop the server
+        sendPowerSignal(sender, serverName, server, PowerSignal.STOP);
+
+        // Record statistics
+        plugin.statistics.actionCounter.increment(Statistics.ActionCounter.ActionType.STOP_SERVER_NOBODY);
+        plugin.statistics.startReasonRecorder.recordStop(serverName);
+    }
+
+    /**
+     * A power signal that passed the checks and is about to be sent
+     */
+    private static class PendingSignal {
+        private final CommandSender sender;
+        private final String serverName;
+        private final Config.ServerConfig server;
+        private final PowerSignal signalType;
+        /**
+         * Whether the signal is part of a command to many servers, so that the sender is not moved to the server
+         */
+        private final boolean batch;
+        /**
+         * Whether the server is restored from the backup instead of just stopped
+         */
+        private final boolean restore;
+        /**
+         * Whether the server is already in or moving to the state, so that no request is sent
+         */
+        private final boolean merged;
+        /**
+         * The state the server moves to
+         */
+        private final ServerState target;
+        /**
+         * The phase timed by the duration history
+         */
+        private final DurationHistory.Phase phase;
+
+        private PendingSignal(CommandSender sender, String serverName, Config.ServerConfig server, PowerSignal signalType,
+                              boolean batch, boolean restore, boolean merged, ServerState target, DurationHistory.Phase phase) {
+            this.sender = sender;
+            this.serverName = serverName;
+            this.server = server;
+            this.signalType = signalType;
+            this.batch = batch;
+            this.restore = restore;
+            this.merged = merged;
+            this.target = target;
+            this.phase = phase;
+        }
+    }
 }
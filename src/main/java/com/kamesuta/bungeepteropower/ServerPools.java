@@ -0,0 +1,253 @@
+package com.kamesuta.bungeepteropower;
+
+import com.kamesuta.bungeepteropower.api.PowerStatus;
+import com.kamesuta.bungeepteropower.power.ServerResources;
+import net.md_5.bungee.api.scheduler.ScheduledTask;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.stream.Collectors;
+
+import static com.kamesuta.bungeepteropower.BungeePteroPower.logger;
+import static com.kamesuta.bungeepteropower.BungeePteroPower.plugin;
+
+/**
+ * Places players connecting to a server pool on one of its instances.
+ * Instances that are up are filled first. When none is up, the instance on the least loaded node is started,
+ * judged from the resource usage of the servers on each node, which is fetched from the panel in the background.
+ * Placement uses the last known state of the instances, so that an idle running instance does not look offline
+ * whenever its state expires between two refreshes.
+ */
+public class ServerPools {
+    /**
+     * Resource usage older than this number of refresh intervals is ignored
+     */
+    private static final int STALE_INTERVALS = 3;
+
+    /**
+     * Cached node names keyed by the Bungeecord server name
+     */
+    private volatile Map<String, String> nodes = Collections.emptyMap();
+    /**
+     * The refresh task
+     */
+    private ScheduledTask refreshTask;
+
+    /**
+     * Start refreshing the nodes and resource usage of the servers periodically
+     */
+    public void start() {
+        stop();
+        nodes = Collections.emptyMap();
+        if (plugin.config.getPoolNames().isEmpty() || !"pterodactyl".equals(plugin.config.powerControllerType)) {
+            return;
+        }
+        refreshTask = plugin.getProxy().getScheduler().schedule(plugin, this::refresh, 0, getRefreshInterval(), TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop refreshing the nodes and resource usage
+     */
+    public void stop() {
+        if (refreshTask != null) {
+            refreshTask.cancel();
+            refreshTask = null;
+        }
+    }
+
+    /**
+     * Choose the instance of the pool to send a connecting player to.
+     * Instances being drained (by autoscaling or before an idle stop) are only chosen if all instances are being drained.
+     *
+     * @param poolName The name of the pool
+     * @return The name of the instance, or null if the pool has no instance the player can be sent to
+     */
+    public @Nullable String place(String poolName) {
+        Config.PoolConfig pool = plugin.config.getPoolConfig(poolName);
+        if (pool == null) {
+            return null;
+        }
+        List<String> instances = getInstances(pool);
+        List<String> active = instances.stream()
+                .filter(serverName -> !plugin.autoscaler.isDraining(serverName) && plugin.states.getLastKnown(serverName) != ServerState.DRAINING)
+                .collect(Collectors.toList());
+        if (!active.isEmpty()) {
+            instances = active;
+        }
+        if (instances.isEmpty()) {
+            return null;
+        }
+
+        // Fill the instances that are up, the least crowded first
+        Optional<String> running = instances.stream()
+                .filter(serverName -> plugin.states.getLastKnown(serverName) == ServerState.RUNNING || !plugin.occupancy.isEmpty(serverName))
+                .min(Comparator.comparingInt(plugin.occupancy::getCount));
+        if (running.isPresent()) {
+            return running.get();
+        }
+
+        // Wait for an instance that is already starting
+        Optional<String> starting = instances.stream()
+                .filter(serverName -> plugin.states.getLastKnown(serverName) == ServerState.STARTING)
+                .findFirst();
+        if (starting.isPresent()) {
+            return starting.get();
+        }
+
+        // Start the offline instance on the least loaded node
+        String chosen = chooseOnLeastLoadedNode(getOffline(instances));
+        return chosen != null ? chosen : chooseOnLeastLoadedNode(instances);
+    }
+
+    /**
+     * Choose the offline instance of the pool to start, on the least loaded node.
+     *
+     * @param pool The pool
+     * @return The name of the instance, or null if all instances are up
+     */
+    public @Nullable String chooseToStart(Config.PoolConfig pool) {
+        return chooseOnLeastLoadedNode(getOffline(getInstances(pool)));
+    }
+
+    /**
+     * Get the instances of the pool that are configured and known to BungeeCord.
+     *
+     * @param pool The pool
+     * @return The names of the instances
+     */
+    public List<String> getInstances(Config.PoolConfig pool) {
+        return pool.servers.stream()
+                .filter(serverName -> plugin.config.getServerConfig(serverName) != null && plugin.getProxy().getServerInfo(serverName) != null)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Get the instances that are offline or not known to be up
+     *
+     * @param instances The names of the instances
+     * @return The names of the offline instances
+     */
+    private static List<String> getOffline(List<String> instances) {
+        return instances.stream()
+                .filter(serverName -> {
+                    ServerState state = plugin.states.getLastKnown(serverName);
+                    return (state == null || state == ServerState.OFFLINE) && plugin.occupancy.isEmpty(serverName);
+                })
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Choose the instance on the node using the least memory, then the least CPU
+     *
+     * @param instances The names of the instances to choose from
+     * @return The name of the instance, or null if there is no instance
+     */
+    private @Nullable String chooseOnLeastLoadedNode(List<String> instances) {
+        Map<String, Load> loads = getNodeLoads();
+        String chosen = instances.stream()
+                .min(Comparator.comparing(serverName -> loads.getOrDefault(nodes.get(serverName), Load.EMPTY), Load.ORDER))
+                .orElse(null);
+        if (chosen != null) {
+            logger.fine("Chose " + chosen + " on the least loaded node: " + nodes.get(chosen));
+        }
+        return chosen;
+    }
+
+    /**
+     * Sum up the resource usage of the servers on each node.
+     * Servers that are starting count with their whole memory limit, because they have not allocated it yet.
+     *
+     * @return The load keyed by the node name
+     */
+    private Map<String, Load> getNodeLoads() {
+        long now = System.nanoTime();
+        long maxAge = TimeUnit.SECONDS.toNanos((long) getRefreshInterval() * STALE_INTERVALS);
+        Map<String, Load> loads = new HashMap<>();
+        nodes.forEach((serverName, node) -> {
+            Load load = loads.computeIfAbsent(node, (k) -> new Load());
+            if (plugin.states.getLastKnown(serverName) == ServerState.STARTING) {
+                load.memoryMB += plugin.memory.getLimit(serverName);
+                return;
+            }
+            ServerResources resources = plugin.pterodactyl.getCachedResources(serverName);
+            if (resources != null && now - resources.fetchedAt < maxAge && resources.status != PowerStatus.OFFLINE) {
+                load.memoryMB += resources.memoryBytes / (1024 * 1024);
+                load.cpu += resources.cpuAbsolute;
+            }
+        });
+        return loads;
+    }
+
+    /**
+     * Fetch the nodes of the servers if not known yet, and the resource usage of the servers sharing a node with a pool instance
+     */
+    private void refresh() {
+        if (!nodes.isEmpty()) {
+            refreshResources();
+            return;
+        }
+        plugin.pterodactyl.getNodes().thenAccept(newNodes -> {
+            nodes = newNodes;
+            refreshResources();
+        }).exceptionally(e -> {
+            logger.log(Level.WARNING, "Failed to refresh the nodes of the pooled servers", e);
+            return null;
+        });
+    }
+
+    /**
+     * Fetch the resource usage of the servers sharing a node with a pool instance.
+     * The status requests also update the known server states.
+     */
+    private void refreshResources() {
+        Map<String, String> current = nodes;
+        Set<String> poolNodes = plugin.config.getPoolNames().stream()
+                .flatMap(poolName -> plugin.config.getPoolConfig(poolName).servers.stream())
+                .map(current::get)
+                .collect(Collectors.toSet());
+        current.forEach((serverName, node) -> {
+            if (poolNodes.contains(node)) {
+                plugin.statusFeed.getStatus(serverName).exceptionally(e -> null);
+            }
+        });
+    }
+
+    /**
+     * Get the interval to refresh the resource usage
+     *
+     * @return The interval in seconds
+     */
+    private static int getRefreshInterval() {
+        return Math.max(10, plugin.config.poolRefreshInterval);
+    }
+
+    /**
+     * Resource usage of a node
+     */
+    private static class Load {
+        private static final Load EMPTY = new Load();
+        /**
+         * Less memory used first, then less CPU used
+         */
+        private static final Comparator<Load> ORDER = Comparator
+                .comparingLong((Load load) -> load.memoryMB)
+                .thenComparingDouble(load -> load.cpu);
+
+        /**
+         * Memory used in MB
+         */
+        private long memoryMB;
+        /**
+         * CPU used in percent of a core
+         */
+        private double cpu;
+    }
+}
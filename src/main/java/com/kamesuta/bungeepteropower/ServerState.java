@@ -0,0 +1,54 @@
+package com.kamesuta.bungeepteropower;
+
+import com.kamesuta.bungeepteropower.api.PowerStatus;
+
+/**
+ * Power state of a managed server.
+ */
+public enum ServerState {
+    /**
+     * The server is stopped
+     */
+    OFFLINE,
+    /**
+     * The start signal was sent, and the server is booting
+     */
+    STARTING,
+    /**
+     * The server is pingable
+     */
+    RUNNING,
+    /**
+     * The server is running but about to be stopped, and new players are sent elsewhere
+     */
+    DRAINING,
+    /**
+     * The stop signal was sent, and the server is shutting down
+     */
+    STOPPING,
+    /**
+     * The server is being restored from a backup
+     */
+    RESTORING,
+    ;
+
+    /**
+     * Get the state from the power status reported by the power controller.
+     *
+     * @param status The power status
+     * @return The state
+     */
+    public static ServerState fromPowerStatus(PowerStatus status) {
+        switch (status) {
+            case STARTING:
+                return STARTING;
+            case RUNNING:
+                return RUNNING;
+            case STOPPING:
+                return STOPPING;
+            case OFFLINE:
+            default:
+                return OFFLINE;
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package com.kamesuta.bungeepteropower;
+
+import com.kamesuta.bungeepteropower.api.PowerSignal;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+
+import static com.kamesuta.bungeepteropower.BungeePteroPower.logger;
+import static com.kamesuta.bungeepteropower.BungeePteroPower.plugin;
+
+/**
+ * Remembers the last known power state of each managed server.
+ * It is fed by pings, panel responses and player events, and each state expires after the configured TTL.
+ * <p>
+ * Power actions move the state with compare-and-set transitions ({@link #begin}), so that conflicting signals
+ * to the same server (e.g. an idle stop while a start is in flight) are merged or rejected instead of all reaching the panel.
+ * Observed states never override a transition in progress: STARTING, STOPPING, RESTORING and DRAINING are only left
+ * when the observed state completes them, through {@link #complete}, {@link #fail} or {@link #endDrain}, or after their TTL.
+ */
+public class ServerStateRegistry {
+    /**
+     * Last known states keyed by the Bungeecord server name
+     */
+    private final ConcurrentMap<String, Entry> states = new ConcurrentHashMap<>();
+    /**
+     * The number of seconds each state is trusted for
+     */
+    private final ToIntFunction<ServerState> ttl;
+
+    /**
+     * Create a new registry with the TTLs from the config
+     */
+    public ServerStateRegistry() {
+        this(ServerStateRegistry::getConfiguredTtl);
+    }
+
+    /**
+     * Create a new registry
+     *
+     * @param ttl The number of seconds each state is trusted for
+     */
+    ServerStateRegistry(ToIntFunction<ServerState> ttl) {
+        this.ttl = ttl;
+    }
+
+    /**
+     * Record the observed state of the server.
+     * The state is ignored while a signal is in flight, and while a transition is in progress unless the state completes it
+     * (RUNNING completes STARTING, OFFLINE completes STOPPING, and RESTORING once the panel accepted the restore).
+     *
+     * @param serverName The name of the server
+     * @param state      The observed state
+     */
+    public void observe(String serverName, ServerState state) {
+        while (true) {
+            Entry current = states.get(serverName);
+            if (current != null && !isExpired(current)) {
+                if (current.inFlight) {
+                    return;
+                }
+                boolean transitional = current.state == ServerState.STARTING || current.state == ServerState.STOPPING
+                        || current.state == ServerState.RESTORING || current.state == ServerState.DRAINING;
+                boolean completes = (current.state == ServerState.STARTING && state == ServerState.RUNNING)
+                        || ((current.state == ServerState.STOPPING || current.state == ServerState.RESTORING) && state == ServerState.OFFLINE);
+                if (transitional && !completes) {
+                    return;
+                }
+            }
+
+            // Compare and set, and retry if the state changed meanwhile
+            Entry next = new Entry(state, System.nanoTime(), false);
+            boolean swapped = current == null ? states.putIfAbsent(serverName, next) == null : states.replace(serverName, current, next);
+            if (swapped) {
+                if (current == null || current.state != state) {
+                    logger.fine(String.format("Server state changed: %s %s -> %s", serverName, current == null ? "UNKNOWN" : current.state, state));
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Record the result of a ping to the server.
+     * A failed ping does not override STARTING or a restore in flight, because the server is expected to be unreachable meanwhile.
+     *
+     * @param serverName The name of the server
+     * @param reachable  Whether the ping succeeded
+     */
+    public void observePing(String serverName, boolean reachable) {
+        observe(serverName, reachable ? ServerState.RUNNING : ServerState.OFFLINE);
+    }
+
+    /**
+     * The result of a transition
+     */
+    public enum Transition {
+        /**
+         * The state moved, and the signal should be sent
+         */
+        APPLIED,
+        /**
+         * The server is already in or moving to the requested state, and the signal should not be sent
+         */
+        MERGED,
+        /**
+         * The signal conflicts with a transition in progress
+         */
+        REJECTED,
+    }
+
+    /**
+     * Move the server to the state of the power signal, if the current state allows it.
+     * <ul>
+     * <li>START: OFFLINE or unknown -&gt; STARTING. Merged while STARTING or RUNNING, rejected while STOPPING or RESTORING.
+     * Merged while DRAINING, and the drain is called off.</li>
+     * <li>STOP: RUNNING, DRAINING, unknown or STARTING accepted by the panel -&gt; STOPPING (RESTORING with restore).
+     * Merged while STOPPING, RESTORING or OFFLINE (unless restoring), rejected while a start is in flight.</li>
+     * </ul>
+     * An applied transition is in flight until {@link #complete} or {@link #fail} is called.
+     *
+     * @param serverName The name of the server
+     * @param signal     The power signal
+     * @param restore    Whether the server is restored from a backup after stopping
+     * @return The result of the transition
+     */
+    public Transition begin(String serverName, PowerSignal signal, boolean restore) {
+        ServerState target = signal == PowerSignal.START ? ServerState.STARTING : restore ? ServerState.RESTORING : ServerState.STOPPING;
+        while (true) {
+            Entry current = states.get(serverName);
+            ServerState state = current == null || isExpired(current) ? null : current.state;
+
+            Transition transition;
+            if (signal == PowerSignal.START && state == ServerState.DRAINING) {
+                // The server is still running, so keep it
+                if (!states.replace(serverName, current, new Entry(ServerState.RUNNING, System.nanoTime(), false))) {
+                    continue;
+                }
+                logger.fine(String.format("Server state transition %s: %s %s (%s)", Transition.MERGED, serverName, signal, state));
+                return Transition.MERGED;
+            } else if (signal == PowerSignal.START) {
+                if (state == null || state == ServerState.OFFLINE) {
+                    transition = Transition.APPLIED;
+                } else if (state == ServerState.STARTING || state == ServerState.RUNNING) {
+                    transition = Transition.MERGED;
+                } else {
+                    transition = Transition.REJECTED;
+                }
+            } else {
+                if (state == ServerState.STARTING && current.inFlight) {
+                    transition = Transition.REJECTED;
+                } else if (state == ServerState.STOPPING || state == ServerState.RESTORING || (state == ServerState.OFFLINE && !restore)) {
+                    transition = Transition.MERGED;
+                } else {
+                    transition = Transition.APPLIED;
+                }
+            }
+            if (transition != Transition.APPLIED) {
+                logger.fine(String.format("Server state transition %s: %s %s (%s)", transition, serverName, signal, state == null ? "UNKNOWN" : state));
+                return transition;
+            }
+
+            // Compare and set, and retry if the state changed meanwhile
+            Entry next = new Entry(target, System.nanoTime(), true);
+            boolean swapped = current == null ? states.putIfAbsent(serverName, next) == null : states.replace(serverName, current, next);
+            if (swapped) {
+                logger.fine(String.format("Server state changed: %s %s -> %s", serverName, state == null ? "UNKNOWN" : state, target));
+                return transition;
+            }
+        }
+    }
+
+    /**
+     * Mark the transition as accepted by the panel.
+     * Does nothing if the state was changed by someone else meanwhile.
+     *
+     * @param serverName The name of the server
+     * @param state      The state moved to by {@link #begin}
+     */
+    public void complete(String serverName, ServerState state) {
+        Entry current = states.get(serverName);
+        if (current != null && current.state == state && current.inFlight) {
+            states.replace(serverName, current, new Entry(state, System.nanoTime(), false));
+        }
+    }
+
+    /**
+     * Undo the transition because the signal was not sent or failed.
+     * The state becomes unknown so that it is checked again.
+     * Does nothing if the state was changed by someone else meanwhile.
+     *
+     * @param serverName The name of the server
+     * @param state      The state moved to by {@link #begin}
+     */
+    public void fail(String serverName, ServerState state) {
+        Entry current = states.get(serverName);
+        if (current != null && current.state == state && current.inFlight) {
+            states.remove(serverName, current);
+        }
+    }
+
+    /**
+     * Start draining the server before it is stopped.
+     * Only a server that is running (or not known to be otherwise) is drained.
+     *
+     * @param serverName The name of the server
+     * @return true if the server moved to DRAINING
+     */
+    public boolean beginDrain(String serverName) {
+        while (true) {
+            Entry current = states.get(serverName);
+            if (current != null && !isExpired(current) && (current.state != ServerState.RUNNING || current.inFlight)) {
+                return false;
+            }
+
+            // Compare and set, and retry if the state changed meanwhile
+            Entry next = new Entry(ServerState.DRAINING, System.nanoTime(), false);
+            boolean swapped = current == null ? states.putIfAbsent(serverName, next) == null : states.replace(serverName, current, next);
+            if (swapped) {
+                logger.fine(String.format("Server state changed: %s %s -> %s", serverName, current == null ? "UNKNOWN" : current.state, ServerState.DRAINING));
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Call off the drain because the server is in use again.
+     * Does nothing if the server is not draining anymore.
+     *
+     * @param serverName The name of the server
+     */
+    public void endDrain(String serverName) {
+        Entry current = states.get(serverName);
+        if (current != null && current.state == ServerState.DRAINING) {
+            if (states.replace(serverName, current, new Entry(ServerState.RUNNING, System.nanoTime(), false))) {
+                logger.fine(String.format("Server state changed: %s %s -> %s", serverName, ServerState.DRAINING, ServerState.RUNNING));
+            }
+        }
+    }
+
+    /**
+     * Get the last known state of the server.
+     *
+     * @param serverName The name of the server
+     * @return The state, or null if unknown or expired
+     */
+    public @Nullable ServerState get(String serverName) {
+        Entry entry = states.get(serverName);
+        return entry == null || isExpired(entry) ? null : entry.state;
+    }
+
+    /**
+     * Get the last known state of the server, even if it has expired.
+     * For decisions that must not flip when the TTL runs out, such as which pool instances are up.
+     *
+     * @param serverName The name of the server
+     * @return The state, or null if never known
+     */
+    public @Nullable ServerState getLastKnown(String serverName) {
+        Entry entry = states.get(serverName);
+        return entry == null ? null : entry.state;
+    }
+
+    /**
+     * Check if the entry is older than the TTL of its state.
+     * Expired entries are kept as the last known state, and replaced by the next observed state.
+     *
+     * @param entry The entry
+     * @return true if expired
+     */
+    private boolean isExpired(Entry entry) {
+        return System.nanoTime() - entry.updatedAt > TimeUnit.SECONDS.toNanos(ttl.applyAsInt(entry.state));
+    }
+
+    /**
+     * Get the TTL of the state from the config.
+     * States set by power actions are trusted for as long as the server may take to start or stop,
+     * other states for the configured TTL.
+     *
+     * @param state The state
+     * @return The TTL in seconds
+     */
+    private static int getConfiguredTtl(ServerState state) {
+        switch (state) {
+            case STARTING:
+                return Math.max(plugin.config.stateCacheTtl, plugin.config.startQueueStartingTimeout);
+            case STOPPING:
+            case RESTORING:
+                return Math.max(plugin.config.stateCacheTtl, plugin.config.restoreTimeout);
+            case DRAINING:
+                return Math.max(plugin.config.stateCacheTtl, plugin.config.idleStopDrainTimeout);
+            default:
+                return plugin.config.stateCacheTtl;
+        }
+    }
+
+    /**
+     * Forget the state of the server.
+     *
+     * @param serverName The name of the server
+     */
+    public void invalidate(String serverName) {
+        states.remove(serverName);
+    }
+
+    /**
+     * A state with the time it was recorded
+     */
+    private static class Entry {
+        private final ServerState state;
+        private final long updatedAt;
+        /**
+         * Whether the signal of the transition has not been accepted by the panel yet
+         */
+        private final boolean inFlight;
+
+        private Entry(ServerState state, long updatedAt, boolean inFlight) {
+            this.state = state;
+            this.updatedAt = updatedAt;
+            this.inFlight = inFlight;
+        }
+    }
+}
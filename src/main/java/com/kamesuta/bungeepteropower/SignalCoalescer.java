@@ -0,0 +1,173 @@
+package com.kamesuta.bungeepteropower;
+
+import com.kamesuta.bungeepteropower.api.PowerController;
+import com.kamesuta.bungeepteropower.api.PowerSignal;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent power signals to the same server.
+ * While a signal is in flight, later callers with the same server and signal attach to the same future
+ * instead of sending another request to the power controller.
+ */
+public class SignalCoalescer {
+    /**
+     * Requests in flight keyed by (server name, signal).
+     * Server IDs are only unique within a panel, so the Bungeecord server name is used instead
+     */
+    private final ConcurrentMap<String, CompletableFuture<Void>> inFlight = new ConcurrentHashMap<>();
+    /**
+     * Number of requests actually sent to the power controller
+     */
+    private final AtomicLong sentCount = new AtomicLong();
+    /**
+     * Number of requests that attached to a request in flight
+     */
+    private final AtomicLong deduplicatedCount = new AtomicLong();
+
+    /**
+     * Send a power signal, or attach to the same signal in flight.
+     *
+     * @param powerController The power controller to send the signal with
+     * @param serverName      The name of the server
+     * @param serverId        The server ID to send the signal to
+     * @param signalType      The power signal to send
+     * @return A future that completes when the request is finished
+     */
+    public CompletableFuture<Void> sendPowerSignal(PowerController powerController, String serverName, String serverId, PowerSignal signalType) {
+        return coalesce(serverName + ":" + signalType.getSignal(), () -> powerController.sendPowerSignal(serverName, serverId, signalType));
+    }
+
+    /**
+     * Send power signals to many servers in one batch.
+     * Servers with the same signal in flight attach to it, and the rest are sent with {@link PowerController#sendPowerSignals}.
+     *
+     * @param powerController The power controller to send the signals with
+     * @param signals         The power signals to send, keyed by the server name
+     * @return A future per server that completes when the request is finished, keyed by the server name
+     */
+    public Map<String, CompletableFuture<Void>> sendPowerSignals(PowerController powerController, Map<String, PowerSignal> signals) {
+        Map<String, CompletableFuture<Void>> result = new LinkedHashMap<>();
+        Map<String, PowerSignal> toSend = new LinkedHashMap<>();
+        Map<String, CompletableFuture<Void>> created = new HashMap<>();
+        signals.forEach((serverName, signalType) -> {
+            String key = serverName + ":" + signalType.getSignal();
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            CompletableFuture<Void> existing = inFlight.putIfAbsent(key, future);
+            if (existing != null) {
+                // Attach to the request in flight
+                deduplicatedCount.incrementAndGet();
+                result.put(serverName, existing.copy());
+            } else {
+                sentCount.incrementAndGet();
+                toSend.put(serverName, signalType);
+                created.put(serverName, future);
+                result.put(serverName, future.copy());
+            }
+        });
+        if (toSend.isEmpty()) {
+            return result;
+        }
+
+        // Send the batch and unregister each request once finished
+        Map<String, CompletableFuture<Void>> responses;
+        try {
+            responses = powerController.sendPowerSignals(toSend);
+        } catch (Exception e) {
+            responses = new HashMap<>();
+            for (String serverName : toSend.keySet()) {
+                responses.put(serverName, CompletableFuture.failedFuture(e));
+            }
+        }
+        for (Map.Entry<String, PowerSignal> entry : toSend.entrySet()) {
+            String serverName = entry.getKey();
+            String key = serverName + ":" + entry.getValue().getSignal();
+            CompletableFuture<Void> future = created.get(serverName);
+            CompletableFuture<Void> response = responses.get(serverName);
+            if (response == null) {
+                response = CompletableFuture.failedFuture(new IllegalStateException("No response for server " + serverName));
+            }
+            response.whenComplete((r, e) -> {
+                inFlight.remove(key, future);
+                if (e != null) {
+                    future.completeExceptionally(e);
+                } else {
+                    future.complete(r);
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * Send a restore signal, or attach to the restore in flight.
+     *
+     * @param powerController The power controller to send the signal with
+     * @param serverName      The name of the server
+     * @param serverId        The server ID to restore
+     * @param backupName      The name of the backup to restore
+     * @return A future that completes when the request is finished
+     */
+    public CompletableFuture<Void> sendRestoreSignal(PowerController powerController, String serverName, String serverId, String backupName) {
+        return coalesce(serverName + ":restore", () -> powerController.sendRestoreSignal(serverName, serverId, backupName));
+    }
+
+    /**
+     * Run the request unless the same request is in flight
+     *
+     * @param key     The key of the request
+     * @param request The request to run
+     * @return A future that completes when the shared request is finished
+     */
+    private CompletableFuture<Void> coalesce(String key, Supplier<CompletableFuture<Void>> request) {
+        CompletableFuture<Void> created = new CompletableFuture<>();
+        CompletableFuture<Void> existing = inFlight.putIfAbsent(key, created);
+        if (existing != null) {
+            // Attach to the request in flight
+            deduplicatedCount.incrementAndGet();
+            return existing.copy();
+        }
+
+        // Send the request and unregister it once finished
+        sentCount.incrementAndGet();
+        try {
+            request.get().whenComplete((result, e) -> {
+                inFlight.remove(key, created);
+                if (e != null) {
+                    created.completeExceptionally(e);
+                } else {
+                    created.complete(result);
+                }
+            });
+        } catch (Exception e) {
+            inFlight.remove(key, created);
+            created.completeExceptionally(e);
+        }
+        return created.copy();
+    }
+
+    /**
+     * Get the number of requests actually sent to the power controller
+     *
+     * @return The number of requests sent
+     */
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    /**
+     * Get the number of requests that attached to a request in flight
+     *
+     * @return The number of deduplicated requests
+     */
+    public long getDeduplicatedCount() {
+        return deduplicatedCount.get();
+    }
+}
@@ -0,0 +1,282 @@
+package com.kamesuta.bungeepteropower;
+
+import com.kamesuta.bungeepteropower.api.PowerSignal;
+import net.md_5.bungee.api.CommandSender;
+import net.md_5.bungee.api.config.ServerInfo;
+import net.md_5.bungee.api.connection.ProxiedPlayer;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.kamesuta.bungeepteropower.BungeePteroPower.logger;
+import static com.kamesuta.bungeepteropower.BungeePteroPower.plugin;
+
+/**
+ * Queue of servers waiting to start.
+ * Limits the number of servers starting at the same time, and holds starts that do not fit in the memory budget
+ * until enough memory is freed. Queued servers are started in order of priority.
+ */
+public class StartQueue {
+    /**
+     * Servers that are starting
+     */
+    private final Set<String> starting = new HashSet<>();
+    /**
+     * Servers waiting to start, keyed by the server name
+     */
+    private final Map<String, Entry> queue = new LinkedHashMap<>();
+
+    /**
+     * Admit the server to start, or queue it.
+     * If queued, the server is started by calling {@link ServerController#sendPowerSignal} again for each sender once admitted.
+     *
+     * @param sender     The command sender who wants to start the server
+     * @param serverName The name of the server
+     * @param server     The server configuration
+     * @param batch      Whether the start is part of a command to many servers, so that the sender is not moved to the server
+     * @return true if the server can be started now
+     */
+    public boolean tryAdmit(CommandSender sender, String serverName, Config.ServerConfig server, boolean batch) {
+        List<Entry> queued;
+        synchronized (this) {
+            // Already admitted
+            if (starting.contains(serverName)) {
+                return true;
+            }
+
+            // Already queued, wait in the same entry
+            Entry entry = queue.get(serverName);
+            if (entry == null) {
+                // Start now if there is a free slot and enough memory
+                if (queue.isEmpty() && hasFreeSlot() && plugin.memory.tryReserve(serverName)) {
+                    markStarting(serverName);
+                    return true;
+                }
+
+                // Queue the server
+                entry = new Entry(serverName, server);
+                queue.put(serverName, entry);
+                logger.info(String.format("Server start queued: %s (queued: %d, starting: %d)", serverName, queue.size(), starting.size()));
+            }
+            // A sender who also asked for the server alone is moved to it
+            if (entry.senders.add(sender) && batch) {
+                entry.batchSenders.add(sender);
+            } else if (!batch) {
+                entry.batchSenders.remove(sender);
+            }
+            queued = sortedEntries();
+        }
+
+        // Free memory for the queue, and tell the waiting players their position
+        preempt();
+        notifyPositions(queued);
+        return false;
+    }
+
+    /**
+     * Called when the server could not be started
+     *
+     * @param serverName The name of the server
+     */
+    public void onStartFailed(String serverName) {
+        finishStarting(serverName);
+    }
+
+    /**
+     * Start queued servers while there are free slots and enough memory
+     */
+    public void dispatch() {
+        List<Entry> admitted = new ArrayList<>();
+        List<Entry> expired = new ArrayList<>();
+        List<Entry> queued;
+        synchronized (this) {
+            // Drop the entries waiting too long
+            long now = System.nanoTime();
+            for (Iterator<Entry> it = queue.values().iterator(); it.hasNext(); ) {
+                Entry entry = it.next();
+                if (now - entry.queuedAt > TimeUnit.SECONDS.toNanos(plugin.config.startQueueTimeout)) {
+                    it.remove();
+                    expired.add(entry);
+                }
+            }
+
+            // Admit the entries in order of priority
+            for (Entry entry : sortedEntries()) {
+                if (!hasFreeSlot() || !plugin.memory.tryReserve(entry.serverName)) {
+                    // Do not let smaller servers overtake the head of the queue
+                    break;
+                }
+                queue.remove(entry.serverName);
+                markStarting(entry.serverName);
+                admitted.add(entry);
+            }
+            queued = sortedEntries();
+        }
+
+        for (Entry entry : expired) {
+            logger.info("Server start expired in queue: " + entry.serverName);
+            entry.senders.forEach(sender -> sender.sendMessage(plugin.messages.error("server_start_queue_expired", entry.serverName)));
+        }
+        for (Entry entry : admitted) {
+            logger.info("Server start dequeued: " + entry.serverName);
+            entry.senders.forEach(sender -> ServerController.sendPowerSignal(sender, entry.serverName, entry.server, PowerSignal.START, entry.batchSenders.contains(sender)));
+        }
+        if (!admitted.isEmpty()) {
+            notifyPositions(queued);
+        }
+    }
+
+    /**
+     * Stop servers whose idle timers are about to fire, to free memory for the head of the queue
+     */
+    public void preempt() {
+        Entry head;
+        int needed;
+        synchronized (this) {
+            List<Entry> entries = sortedEntries();
+            if (entries.isEmpty() || !plugin.memory.isEnabled()) {
+                return;
+            }
+            head = entries.get(0);
+            needed = plugin.memory.getReservedTotal() + plugin.memory.getLimit(head.serverName) - plugin.config.maxMemoryMB;
+        }
+
+        // Stop the servers that will be stopped soon anyway, earliest first
+        Map<String, Long> stops = plugin.delay.getStopsWithin(plugin.config.startQueuePreemptWithin);
+        List<String> candidates = new ArrayList<>(stops.keySet());
+        candidates.sort(Comparator.comparing(stops::get));
+        for (String serverName : candidates) {
+            if (needed <= 0) {
+                break;
+            }
+            int limit = plugin.memory.getLimit(serverName);
+            if (plugin.delay.stopNow(serverName)) {
+                logger.info(String.format("Stopped %s early to free %d MB for queued server %s", serverName, limit, head.serverName));
+                needed -= limit;
+            }
+        }
+    }
+
+    /**
+     * Get the number of servers waiting to start
+     *
+     * @return The number of queued servers
+     */
+    public synchronized int getQueuedCount() {
+        return queue.size();
+    }
+
+    /**
+     * Get the number of servers starting
+     *
+     * @return The number of starting servers
+     */
+    public synchronized int getStartingCount() {
+        return starting.size();
+    }
+
+    /**
+     * Whether another server can start now
+     *
+     * @return true if the number of starting servers is below the limit
+     */
+    private boolean hasFreeSlot() {
+        return plugin.config.startQueueMaxConcurrentStarts <= 0 || starting.size() < plugin.config.startQueueMaxConcurrentStarts;
+    }
+
+    /**
+     * Mark the server as starting until it becomes pingable or the timeout passes
+     *
+     * @param serverName The name of the server
+     */
+    private void markStarting(String serverName) {
+        starting.add(serverName);
+
+        ServerInfo serverInfo = plugin.getProxy().getServerInfo(serverName);
+        if (serverInfo == null) {
+            // Cannot wait for a server not found on bungeecord config
+            plugin.getProxy().getScheduler().schedule(plugin, () -> finishStarting(serverName), plugin.config.startQueueStartingTimeout, TimeUnit.SECONDS);
+            return;
+        }
+        plugin.readiness.onceStarted(serverInfo, null, plugin.config.startQueueStartingTimeout)
+                .whenComplete((v, e) -> finishStarting(serverName));
+    }
+
+    /**
+     * Release the slot of the server and start the next one
+     *
+     * @param serverName The name of the server
+     */
+    private void finishStarting(String serverName) {
+        synchronized (this) {
+            if (!starting.remove(serverName)) {
+                return;
+            }
+        }
+        dispatch();
+    }
+
+    /**
+     * Get the queued entries in order of priority
+     *
+     * @return The entries, highest priority first
+     */
+    private List<Entry> sortedEntries() {
+        List<Entry> entries = new ArrayList<>(queue.values());
+        entries.sort(Comparator.comparingInt(Entry::getPriority).reversed().thenComparingLong(entry -> entry.queuedAt));
+        return entries;
+    }
+
+    /**
+     * Tell the waiting senders their position in the queue
+     *
+     * @param entries The entries in order of priority
+     */
+    private void notifyPositions(List<Entry> entries) {
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            int position = i + 1;
+            entry.senders.forEach(sender -> sender.sendMessage(plugin.messages.warning("server_start_queued", entry.serverName, position)));
+        }
+    }
+
+    /**
+     * A server waiting to start
+     */
+    private static class Entry {
+        private final String serverName;
+        private final Config.ServerConfig server;
+        private final Set<CommandSender> senders = new LinkedHashSet<>();
+        /**
+         * The senders who asked through a command to many servers
+         */
+        private final Set<CommandSender> batchSenders = new HashSet<>();
+        private final long queuedAt = System.nanoTime();
+
+        private Entry(String serverName, Config.ServerConfig server) {
+            this.serverName = serverName;
+            this.server = server;
+        }
+
+        /**
+         * Get the priority of the entry.
+         * The configured weight of the server plus the number of players waiting for it.
+         *
+         * @return The priority
+         */
+        private int getPriority() {
+            int players = (int) senders.stream()
+                    .filter(sender -> sender instanceof ProxiedPlayer && ((ProxiedPlayer) sender).isConnected())
+                    .count();
+            return server.priority + players;
+        }
+    }
+}
@@ -126,6 +126,8 @@ public class Statistics {
             OTHER("other"),
             COMMAND("command"),
             AUTOJOIN("autojoin"),
+            PREWARM("prewarm"),
+            AUTOSCALE("autoscale"),
             ;
 
             public final String name;
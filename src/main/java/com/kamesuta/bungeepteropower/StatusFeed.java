@@ -0,0 +1,280 @@
+package com.kamesuta.bungeepteropower;
+
+import com.kamesuta.bungeepteropower.api.PowerController;
+import com.kamesuta.bungeepteropower.api.PowerStatus;
+import com.kamesuta.bungeepteropower.api.PowerStatusListener;
+
+import javax.annotation.Nullable;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static com.kamesuta.bungeepteropower.BungeePteroPower.logger;
+import static com.kamesuta.bungeepteropower.BungeePteroPower.plugin;
+
+/**
+ * Power status of the servers, shared by everything waiting for a server to start or stop.
+ * The status is pushed from the power controller if it supports it, and polled otherwise.
+ * Every status received is recorded in the state registry.
+ */
+public class StatusFeed {
+    /**
+     * Subscriptions to the power controller keyed by the server name
+     */
+    private final ConcurrentMap<String, Feed> feeds = new ConcurrentHashMap<>();
+    /**
+     * Status requests in flight keyed by the server name
+     */
+    private final ConcurrentMap<String, CompletableFuture<PowerStatus>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Get the power status of the server from the power controller.
+     * Concurrent requests for the same server share one request.
+     *
+     * @param serverName The name of the server
+     * @return A future that completes with the power status
+     */
+    public CompletableFuture<PowerStatus> getStatus(String serverName) {
+        Config.ServerConfig server = plugin.config.getServerConfig(serverName);
+        if (server == null) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Server is not configured: " + serverName));
+        }
+
+        CompletableFuture<PowerStatus> created = new CompletableFuture<>();
+        CompletableFuture<PowerStatus> existing = inFlight.putIfAbsent(serverName, created);
+        if (existing != null) {
+            // Attach to the request in flight
+            return existing.copy();
+        }
+
+        // Send the request and unregister it once finished
+        CompletableFuture<PowerStatus> request;
+        try {
+            request = plugin.config.getPowerController().getPowerStatus(serverName, server.id);
+        } catch (Exception e) {
+            request = CompletableFuture.failedFuture(e);
+        }
+        request.whenComplete((status, e) -> {
+            inFlight.remove(serverName, created);
+            if (e != null) {
+                created.completeExceptionally(e);
+            } else {
+                record(serverName, status);
+                created.complete(status);
+            }
+        });
+        return created.copy();
+    }
+
+    /**
+     * Subscribe to the power status pushed from the power controller.
+     * All subscribers of the same server share one subscription to the power controller.
+     *
+     * @param serverName The name of the server
+     * @param listener   The listener
+     * @return A handle to unsubscribe, or null if the power controller does not push the status
+     */
+    public @Nullable Runnable subscribe(String serverName, PowerStatusListener listener) {
+        Config.ServerConfig server = plugin.config.getServerConfig(serverName);
+        if (server == null) {
+            return null;
+        }
+
+        while (true) {
+            Feed feed = feeds.computeIfAbsent(serverName, Feed::new);
+            synchronized (feed) {
+                if (feed.closed) {
+                    // The feed is closing, retry with a new one
+                    continue;
+                }
+                feed.listeners.add(listener);
+                if (!feed.open(server.id)) {
+                    feed.listeners.remove(listener);
+                    return null;
+                }
+            }
+            return () -> feed.unsubscribe(listener);
+        }
+    }
+
+    /**
+     * Wait until the power status of the server becomes the given status.
+     *
+     * @param serverName The name of the server
+     * @param target     The power status to wait for
+     * @param timeout    The number of seconds to wait
+     * @return A future that completes when the server reaches the status, or fails if timed out
+     */
+    public CompletableFuture<Void> waitUntil(String serverName, PowerStatus target, int timeout) {
+        CompletableFuture<Void> future = new CompletableFuture<Void>().orTimeout(timeout, TimeUnit.SECONDS);
+
+        // Wait for the pushed status if available
+        Runnable unsubscribe = subscribe(serverName, new PowerStatusListener() {
+            @Override
+            public void onStatus(PowerStatus status) {
+                // Complete if the server reached the status
+                if (status == target) {
+                    future.complete(null);
+                }
+            }
+
+            @Override
+            public void onClosed() {
+                // Fall back to polling
+                if (!future.isDone()) {
+                    poll(serverName, target, future);
+                }
+            }
+        });
+        if (unsubscribe != null) {
+            future.whenComplete((v, e) -> unsubscribe.run());
+
+            // Initial check, in case the server is already in the status
+            getStatus(serverName).thenAccept(status -> {
+                if (status == target) {
+                    future.complete(null);
+                }
+            });
+            return future;
+        }
+
+        poll(serverName, target, future);
+        return future;
+    }
+
+    /**
+     * Poll the power status until the server reaches the status.
+     *
+     * @param serverName The name of the server
+     * @param target     The power status to wait for
+     * @param future     The future to complete when the server reaches the status
+     */
+    private void poll(String serverName, PowerStatus target, CompletableFuture<Void> future) {
+        boolean stopping = target == PowerStatus.OFFLINE || target == PowerStatus.STOPPING;
+        Polling.Schedule schedule = stopping
+                ? plugin.polling.begin(serverName, DurationHistory.Phase.STOP, plugin.config.restorePingInterval)
+                : plugin.polling.begin(serverName, DurationHistory.Phase.BOOT, plugin.config.pingInterval);
+        future.whenComplete((v, e) -> schedule.finish(e == null));
+
+        new Runnable() {
+            @Override
+            public void run() {
+                getStatus(serverName).whenComplete((status, e) -> {
+                    // Do nothing if timeout or already completed
+                    if (future.isDone()) {
+                        return;
+                    }
+                    if (e != null) {
+                        // Give up if the power controller cannot tell the status
+                        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                        if (cause instanceof UnsupportedOperationException) {
+                            future.completeExceptionally(cause);
+                            return;
+                        }
+                    } else if (status == target) {
+                        // Complete if the server reached the status
+                        future.complete(null);
+                        return;
+                    } else {
+                        logger.fine("Server is still " + status.getStatus() + ". Waiting for it to be " + target.getStatus() + ": " + serverName);
+                    }
+                    // Otherwise schedule another poll
+                    plugin.getProxy().getScheduler().schedule(plugin, this, schedule.nextDelay(), TimeUnit.MILLISECONDS);
+                });
+            }
+        }.run();
+    }
+
+    /**
+     * Record the power status reported by the power controller.
+     *
+     * @param serverName The name of the server
+     * @param status     The power status
+     */
+    private static void record(String serverName, PowerStatus status) {
+        plugin.states.observe(serverName, ServerState.fromPowerStatus(status));
+        if (status == PowerStatus.OFFLINE) {
+            plugin.history.end(serverName, DurationHistory.Phase.STOP);
+        }
+    }
+
+    /**
+     * A subscription to the power controller shared by the subscribers of a server
+     */
+    private class Feed implements PowerStatusListener {
+        private final String serverName;
+        private final List<PowerStatusListener> listeners = new CopyOnWriteArrayList<>();
+        private boolean opened;
+        private boolean closed;
+        /**
+         * Handle to unsubscribe from the power controller
+         */
+        private @Nullable Runnable upstream;
+
+        private Feed(String serverName) {
+            this.serverName = serverName;
+        }
+
+        /**
+         * Subscribe to the power controller if not subscribed yet (must hold the lock)
+         *
+         * @param serverId The server ID
+         * @return true if the status is pushed
+         */
+        private boolean open(String serverId) {
+            if (!opened) {
+                opened = true;
+                PowerController powerController = plugin.config.getPowerController();
+                upstream = powerController.subscribeStatus(serverName, serverId, this);
+                if (upstream == null) {
+                    close();
+                }
+            }
+            return !closed;
+        }
+
+        /**
+         * Remove a subscriber, and unsubscribe from the power controller if nobody is listening anymore
+         *
+         * @param listener The listener to remove
+         */
+        private void unsubscribe(PowerStatusListener listener) {
+            Runnable handle;
+            synchronized (this) {
+                listeners.remove(listener);
+                if (!listeners.isEmpty() || closed) {
+                    return;
+                }
+                close();
+                handle = upstream;
+            }
+            if (handle != null) {
+                handle.run();
+            }
+        }
+
+        /**
+         * Mark the feed as closed and unregister it
+         */
+        private synchronized void close() {
+            closed = true;
+            feeds.remove(serverName, this);
+        }
+
+        @Override
+        public void onStatus(PowerStatus status) {
+            record(serverName, status);
+            listeners.forEach(listener -> listener.onStatus(status));
+        }
+
+        @Override
+        public void onClosed() {
+            close();
+            listeners.forEach(PowerStatusListener::onClosed);
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package com.kamesuta.bungeepteropower;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import static com.kamesuta.bungeepteropower.BungeePteroPower.logger;
+
+/**
+ * Hashed timing wheel driven by a single ticker thread.
+ * Scheduling, cancelling and moving a deadline are O(1): a moved deadline is only written to the timeout,
+ * and the timeout is re-filed lazily when the ticker reaches its old slot.
+ */
+public class TimingWheel {
+    /**
+     * The slots of the wheel. A slot holds the timeouts whose tick maps to it, across all rounds.
+     */
+    private final Set<Timeout>[] wheel;
+    /**
+     * wheel.length - 1
+     */
+    private final int mask;
+    /**
+     * The length of a tick in nanoseconds
+     */
+    private final long tickNanos;
+    /**
+     * The time the wheel was created
+     */
+    private final long startNanos = System.nanoTime();
+    /**
+     * Runs the expired tasks so that the ticker is not blocked by them
+     */
+    private final Executor executor;
+    /**
+     * The ticker thread
+     */
+    private final Thread ticker;
+    /**
+     * The next tick to process (guarded by this)
+     */
+    private long nextTick;
+    /**
+     * Whether the wheel is stopped
+     */
+    private volatile boolean stopped;
+
+    /**
+     * Create a new wheel and start the ticker thread
+     *
+     * @param name         The name of the ticker thread
+     * @param tickDuration The length of a tick
+     * @param unit         The unit of the tick duration
+     * @param slots        The number of slots (rounded up to a power of two)
+     * @param executor     Runs the expired tasks
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimingWheel(String name, long tickDuration, TimeUnit unit, int slots, Executor executor) {
+        int size = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+        this.wheel = new Set[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new LinkedHashSet<>();
+        }
+        this.mask = size - 1;
+        this.tickNanos = Math.max(1, unit.toNanos(tickDuration));
+        this.executor = executor;
+        this.ticker = new Thread(this::run, name);
+        this.ticker.setDaemon(true);
+        this.ticker.start();
+    }
+
+    /**
+     * Schedule a task
+     *
+     * @param delay The delay
+     * @param unit  The unit of the delay
+     * @param task  The task to run once the delay passed
+     * @return The timeout to cancel or move
+     */
+    public Timeout schedule(long delay, TimeUnit unit, Runnable task) {
+        Timeout timeout = new Timeout(task);
+        synchronized (this) {
+            timeout.deadline = System.nanoTime() + unit.toNanos(delay);
+            file(timeout);
+        }
+        return timeout;
+    }
+
+    /**
+     * Stop the ticker thread. Pending timeouts never fire.
+     */
+    public void stop() {
+        stopped = true;
+        ticker.interrupt();
+    }
+
+    /**
+     * File the timeout in the slot of its deadline (must hold the lock)
+     *
+     * @param timeout The timeout
+     */
+    private void file(Timeout timeout) {
+        // Never file into a tick already processed
+        long tick = Math.max(nextTick, tickOf(timeout.deadline));
+        if (timeout.slot != null) {
+            timeout.slot.remove(timeout);
+        }
+        timeout.tick = tick;
+        timeout.slot = wheel[(int) (tick & mask)];
+        timeout.slot.add(timeout);
+    }
+
+    /**
+     * Get the tick the time belongs to
+     *
+     * @param nanos The time in nanoseconds
+     * @return The tick
+     */
+    private long tickOf(long nanos) {
+        // Round up so that the timeout never fires early
+        return (nanos - startNanos + tickNanos - 1) / tickNanos;
+    }
+
+    /**
+     * The ticker loop
+     */
+    private void run() {
+        while (!stopped) {
+            // Sleep until the next tick
+            long tickStart;
+            synchronized (this) {
+                tickStart = startNanos + nextTick * tickNanos;
+            }
+            long sleep = tickStart - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    // Stopped
+                    continue;
+                }
+            }
+
+            // Process the tick (and catch up if the thread was late)
+            List<Timeout> expired = new ArrayList<>();
+            synchronized (this) {
+                long tick = nextTick;
+                nextTick++;
+                Set<Timeout> slot = wheel[(int) (tick & mask)];
+                List<Timeout> moved = new ArrayList<>();
+                for (Iterator<Timeout> it = slot.iterator(); it.hasNext(); ) {
+                    Timeout timeout = it.next();
+                    if (timeout.tick > tick) {
+                        // Due in a later round
+                        continue;
+                    }
+                    it.remove();
+                    timeout.slot = null;
+                    if (tickOf(timeout.deadline) > tick) {
+                        // The deadline was moved later
+                        moved.add(timeout);
+                    } else {
+                        expired.add(timeout);
+                    }
+                }
+                moved.forEach(this::file);
+            }
+
+            for (Timeout timeout : expired) {
+                try {
+                    executor.execute(timeout.task);
+                } catch (Exception e) {
+                    logger.log(Level.WARNING, "Failed to run a scheduled task", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * A task scheduled on the wheel
+     */
+    public class Timeout {
+        private final Runnable task;
+        /**
+         * The deadline in System.nanoTime() (guarded by the wheel)
+         */
+        private long deadline;
+        /**
+         * The tick the timeout is filed under (guarded by the wheel)
+         */
+        private long tick;
+        /**
+         * The slot the timeout is filed in, or null if not filed (guarded by the wheel)
+         */
+        private Set<Timeout> slot;
+
+        private Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        /**
+         * Move the deadline to the delay from now.
+         * Moving it later only updates the deadline; moving it earlier re-files the timeout.
+         *
+         * @param delay The delay
+         * @param unit  The unit of the delay
+         * @return false if the timeout already expired or was cancelled
+         */
+        public boolean reschedule(long delay, TimeUnit unit) {
+            synchronized (TimingWheel.this) {
+                if (slot == null) {
+                    return false;
+                }
+                deadline = System.nanoTime() + unit.toNanos(delay);
+                if (tickOf(deadline) < tick) {
+                    file(this);
+                }
+                return true;
+            }
+        }
+
+        /**
+         * Cancel the timeout
+         *
+         * @return false if the timeout already expired or was cancelled
+         */
+        public boolean cancel() {
+            synchronized (TimingWheel.this) {
+                if (slot == null) {
+                    return false;
+                }
+                slot.remove(this);
+                slot = null;
+                return true;
+            }
+        }
+
+        /**
+         * Get the deadline
+         *
+         * @return The deadline in System.nanoTime()
+         */
+        public long getDeadline() {
+            synchronized (TimingWheel.this) {
+                return deadline;
+            }
+        }
+    }
+}
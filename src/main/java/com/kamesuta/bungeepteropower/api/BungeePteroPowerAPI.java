@@ -2,6 +2,9 @@ package com.kamesuta.bungeepteropower.api;
 
 import com.kamesuta.bungeepteropower.BungeePteroPower;
 
+import javax.annotation.Nullable;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * API for BungeePteroPower.
  * You can use this API to register a custom power controller. (e.g. for a custom server hosting service)
@@ -35,4 +38,24 @@ public interface BungeePteroPowerAPI {
      * @param name The name of the power controller to unregister
      */
     void unregisterPowerController(String name);
+
+    /**
+     * Get the server ID of a server in the configuration.
+     *
+     * @param serverName The Bungeecord server name
+     * @return The server ID to send power signals to, or null if the server is not configured
+     */
+    @Nullable String getServerId(String serverName);
+
+    /**
+     * Wait until the power status of the server becomes the given status.
+     * The status is pushed from or polled with the power controller, sharing the feed with the plugin.
+     * Power controllers can use this to implement {@link PowerController#sendRestoreSignal}.
+     *
+     * @param serverName The Bungeecord server name
+     * @param status     The power status to wait for
+     * @param timeout    The number of seconds to wait
+     * @return A future that completes when the server reaches the status, or fails if timed out
+     */
+    CompletableFuture<Void> waitForPowerStatus(String serverName, PowerStatus status, int timeout);
 }
@@ -1,5 +1,7 @@
 package com.kamesuta.bungeepteropower.api;
 
+import javax.annotation.Nullable;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 
 /**
@@ -21,6 +23,19 @@ public interface PowerController {
      */
     CompletableFuture<Void> sendPowerSignal(String serverName, String serverId, PowerSignal signalType);
 
+    /**
+     * Send power signals to many servers at once.
+     * By default, {@link #sendPowerSignal} is called for each server with at most {@link PowerSignalBatch#DEFAULT_PARALLELISM} requests in flight.
+     * Override this method if the management software can handle many servers in a single request.
+     *
+     * @param signals The power signals to send, keyed by the server name
+     *                (use {@link BungeePteroPowerAPI#getServerId} to get the server ID)
+     * @return A future per server that completes when the request for the server is finished, keyed by the server name
+     */
+    default Map<String, CompletableFuture<Void>> sendPowerSignals(Map<String, PowerSignal> signals) {
+        return PowerSignalBatch.send(this, signals, PowerSignalBatch.DEFAULT_PARALLELISM);
+    }
+
     /**
      * Restore from a backup.
      *
@@ -30,4 +45,43 @@ public interface PowerController {
      * @return A future that completes when the request is finished
      */
     CompletableFuture<Void> sendRestoreSignal(String serverName, String serverId, String backupName);
+
+    /**
+     * Check if the management software is taking requests for the server.
+     * While this returns false, players joining the server do not start it automatically.
+     * Power controllers that detect outages should also fail requests fast with {@link PowerControllerUnavailableException}.
+     *
+     * @param serverName The name of the server
+     * @param serverId   The server ID
+     * @return false if requests for the server are known to fail
+     */
+    default boolean isAvailable(String serverName, String serverId) {
+        return true;
+    }
+
+    /**
+     * Get the power status of the server.
+     * Implement this method to support restore-on-stop and to let the plugin know the state of the server without pinging it.
+     *
+     * @param serverName The name of the server
+     * @param serverId   The server ID
+     * @return A future that completes with the power status, or fails with {@link UnsupportedOperationException} if not supported
+     */
+    default CompletableFuture<PowerStatus> getPowerStatus(String serverName, String serverId) {
+        return CompletableFuture.failedFuture(new UnsupportedOperationException("Power status is not supported by this power controller"));
+    }
+
+    /**
+     * Subscribe to the power status pushed from the management software.
+     * Implement this method if the status can be received without polling (e.g. with a websocket).
+     * The plugin shares a single subscription per server between all its users.
+     *
+     * @param serverName The name of the server
+     * @param serverId   The server ID
+     * @param listener   The listener
+     * @return A handle to unsubscribe, or null if the status is not pushed (the plugin polls {@link #getPowerStatus} instead)
+     */
+    default @Nullable Runnable subscribeStatus(String serverName, String serverId, PowerStatusListener listener) {
+        return null;
+    }
 }
@@ -0,0 +1,18 @@
+package com.kamesuta.bungeepteropower.api;
+
+/**
+ * Thrown by a power controller that refuses requests without trying them,
+ * because the management software is known to be unreachable (e.g. down for maintenance).
+ */
+public class PowerControllerUnavailableException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Create a new exception
+     *
+     * @param message The detail message
+     */
+    public PowerControllerUnavailableException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,85 @@
+package com.kamesuta.bungeepteropower.api;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sends power signals to many servers with a bounded number of requests in flight.
+ * This is the default implementation of {@link PowerController#sendPowerSignals(Map)},
+ * and can also be used by power controllers that override it with their own parallelism.
+ */
+public final class PowerSignalBatch {
+    /**
+     * The number of requests in flight used by the default implementation
+     */
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    private PowerSignalBatch() {
+    }
+
+    /**
+     * Send the power signals by calling {@link PowerController#sendPowerSignal} for each server.
+     * At most the given number of requests are in flight at the same time, and the next request is sent when one finishes.
+     *
+     * @param controller  The power controller to send the signals with
+     * @param signals     The power signals to send, keyed by the server name
+     * @param parallelism The maximum number of requests in flight
+     * @return A future per server that completes when the request for the server is finished, keyed by the server name
+     */
+    public static Map<String, CompletableFuture<Void>> send(PowerController controller, Map<String, PowerSignal> signals, int parallelism) {
+        Map<String, CompletableFuture<Void>> futures = new LinkedHashMap<>();
+        Deque<Map.Entry<String, PowerSignal>> queue = new ArrayDeque<>();
+        signals.forEach((serverName, signalType) -> {
+            futures.put(serverName, new CompletableFuture<>());
+            queue.add(Map.entry(serverName, signalType));
+        });
+
+        // Each worker sends the next signal in the queue when its request finishes
+        int workers = Math.min(Math.max(1, parallelism), queue.size());
+        for (int i = 0; i < workers; i++) {
+            sendNext(controller, queue, futures);
+        }
+        return futures;
+    }
+
+    /**
+     * Send the next power signal in the queue, and the one after it once finished
+     *
+     * @param controller The power controller to send the signals with
+     * @param queue      The power signals not sent yet
+     * @param futures    The futures to complete, keyed by the server name
+     */
+    private static void sendNext(PowerController controller, Deque<Map.Entry<String, PowerSignal>> queue, Map<String, CompletableFuture<Void>> futures) {
+        Map.Entry<String, PowerSignal> next;
+        synchronized (queue) {
+            next = queue.poll();
+        }
+        if (next == null) {
+            return;
+        }
+
+        String serverName = next.getKey();
+        CompletableFuture<Void> future = futures.get(serverName);
+        CompletableFuture<Void> request;
+        try {
+            String serverId = BungeePteroPowerAPI.getInstance().getServerId(serverName);
+            if (serverId == null) {
+                throw new IllegalArgumentException("Server is not configured: " + serverName);
+            }
+            request = controller.sendPowerSignal(serverName, serverId, next.getValue());
+        } catch (Exception e) {
+            request = CompletableFuture.failedFuture(e);
+        }
+        request.whenComplete((result, e) -> {
+            if (e != null) {
+                future.completeExceptionally(e);
+            } else {
+                future.complete(result);
+            }
+            sendNext(controller, queue, futures);
+        });
+    }
+}
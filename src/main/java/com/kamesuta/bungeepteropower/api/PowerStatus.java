@@ -0,0 +1,51 @@
+package com.kamesuta.bungeepteropower.api;
+
+import javax.annotation.Nullable;
+
+/**
+ * Power status of a server reported by a power controller.
+ */
+public enum PowerStatus {
+    /**
+     * The server is stopped
+     */
+    OFFLINE,
+    /**
+     * The server is booting
+     */
+    STARTING,
+    /**
+     * The server is running
+     */
+    RUNNING,
+    /**
+     * The server is shutting down
+     */
+    STOPPING,
+    ;
+
+    /**
+     * Get the status string.
+     * It is the status used in the Pterodactyl API.
+     *
+     * @return The status string
+     */
+    public String getStatus() {
+        return name().toLowerCase();
+    }
+
+    /**
+     * Get the power status from the status string.
+     *
+     * @param status The status string (e.g. "offline", "starting", "running", "stopping")
+     * @return The power status, or null if the status is unknown
+     */
+    public static @Nullable PowerStatus fromStatus(String status) {
+        for (PowerStatus powerStatus : values()) {
+            if (powerStatus.getStatus().equals(status)) {
+                return powerStatus;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,19 @@
+package com.kamesuta.bungeepteropower.api;
+
+/**
+ * Listener of the power status pushed from a power controller.
+ */
+public interface PowerStatusListener {
+    /**
+     * Called when the power status of the server changes
+     *
+     * @param status The power status
+     */
+    void onStatus(PowerStatus status);
+
+    /**
+     * Called when no more status will be pushed (e.g. the connection to the panel is lost).
+     * The listener should fall back to polling.
+     */
+    void onClosed();
+}
@@ -0,0 +1,191 @@
+package com.kamesuta.bungeepteropower.power;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.kamesuta.bungeepteropower.BungeePteroPower.logger;
+
+/**
+ * Stops sending requests to a Pterodactyl panel that keeps failing.
+ * After enough consecutive failures the breaker opens and requests fail fast.
+ * Once the open duration passed, a single probe request is let through: the breaker closes if it succeeds, and opens again otherwise.
+ */
+public class PterodactylCircuitBreaker {
+    /**
+     * State of the breaker
+     */
+    public enum State {
+        /**
+         * Requests are sent
+         */
+        CLOSED,
+        /**
+         * Requests fail fast
+         */
+        OPEN,
+        /**
+         * A probe request is let through to check if the panel is back
+         */
+        HALF_OPEN,
+    }
+
+    /**
+     * The name of the panel for the logs
+     */
+    private final String name;
+    /**
+     * The number of consecutive failures that opens the breaker (0 to disable)
+     */
+    private final int failureThreshold;
+    /**
+     * The number of nanoseconds the breaker stays open before probing
+     */
+    private final long openNanos;
+    /**
+     * The state (guarded by this)
+     */
+    private State state = State.CLOSED;
+    /**
+     * The number of consecutive failures (guarded by this)
+     */
+    private int consecutiveFailures;
+    /**
+     * When the breaker opened, in System.nanoTime() (guarded by this)
+     */
+    private long openedAt;
+    /**
+     * Whether the probe request is in flight (guarded by this)
+     */
+    private boolean probing;
+    /**
+     * Number of times the breaker opened
+     */
+    private final AtomicLong openedCount = new AtomicLong();
+    /**
+     * Number of requests that failed fast
+     */
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * Create a new breaker
+     *
+     * @param name             The name of the panel for the logs
+     * @param failureThreshold The number of consecutive failures that opens the breaker (0 to disable)
+     * @param openDuration     The number of seconds the breaker stays open before probing
+     */
+    public PterodactylCircuitBreaker(String name, int failureThreshold, int openDuration) {
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openNanos = TimeUnit.SECONDS.toNanos(Math.max(1, openDuration));
+    }
+
+    /**
+     * Ask to send a request
+     *
+     * @return true if the request may be sent, false if it should fail fast
+     */
+    public boolean tryAcquire() {
+        synchronized (this) {
+            switch (state) {
+                case CLOSED:
+                    return true;
+                case OPEN:
+                    if (System.nanoTime() - openedAt < openNanos) {
+                        break;
+                    }
+                    // Probe the panel with this request
+                    state = State.HALF_OPEN;
+                    probing = true;
+                    logger.info("Checking if the panel is back: " + name);
+                    return true;
+                case HALF_OPEN:
+                    if (!probing) {
+                        probing = true;
+                        return true;
+                    }
+                    break;
+            }
+        }
+        rejectedCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Record that the panel answered
+     */
+    public synchronized void onSuccess() {
+        if (state != State.CLOSED) {
+            logger.info("The panel is back. Sending requests again: " + name);
+        }
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        probing = false;
+    }
+
+    /**
+     * Record that the panel did not answer or failed with a server error
+     */
+    public synchronized void onFailure() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failureThreshold > 0 && consecutiveFailures >= failureThreshold)) {
+            state = State.OPEN;
+            openedAt = System.nanoTime();
+            probing = false;
+            openedCount.incrementAndGet();
+            logger.warning(String.format("The panel failed %d times in a row. Requests fail fast for %d sec: %s",
+                    consecutiveFailures, TimeUnit.NANOSECONDS.toSeconds(openNanos), name));
+        }
+    }
+
+    /**
+     * Record that the request finished without telling whether the panel is up (e.g. it was never sent)
+     */
+    public synchronized void release() {
+        if (state == State.HALF_OPEN) {
+            probing = false;
+        }
+    }
+
+    /**
+     * Check if a request would be sent now
+     *
+     * @return false if requests fail fast
+     */
+    public synchronized boolean isAvailable() {
+        switch (state) {
+            case OPEN:
+                return System.nanoTime() - openedAt >= openNanos;
+            case HALF_OPEN:
+                return !probing;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Get the state of the breaker
+     *
+     * @return The state
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Get the number of times the breaker opened
+     *
+     * @return The number of times opened
+     */
+    public long getOpenedCount() {
+        return openedCount.get();
+    }
+
+    /**
+     * Get the number of requests that failed fast
+     *
+     * @return The number of rejected requests
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+}
@@ -0,0 +1,386 @@
+package com.kamesuta.bungeepteropower.power;
+
+import com.kamesuta.bungeepteropower.api.PowerControllerUnavailableException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.WebSocket;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long-lived HTTP client for a Pterodactyl panel.
+ * One instance is shared by all requests to the panel so that keep-alive and HTTP/2 connections are reused
+ * instead of paying a new TLS handshake for every request.
+ */
+public class PterodactylClient {
+    /**
+     * Number of clients built since the plugin was enabled
+     */
+    private static final AtomicInteger buildCount = new AtomicInteger();
+
+    /**
+     * The URL of the Pterodactyl panel
+     */
+    private final URI url;
+    /**
+     * The client API key
+     */
+    private final String apiKey;
+    /**
+     * Bounded executor for the HTTP client
+     */
+    private final ExecutorService executor;
+    /**
+     * Bounded executor reading streamed response bodies, which block and must not run on the HTTP executor
+     */
+    private final ExecutorService bodyExecutor;
+    /**
+     * The underlying HTTP client
+     */
+    private final HttpClient client;
+    /**
+     * Number of requests sent with this client
+     */
+    private final AtomicLong requestCount = new AtomicLong();
+    /**
+     * Number of responses received over HTTP/2, i.e. multiplexed on a shared connection
+     */
+    private final AtomicLong http2Count = new AtomicLong();
+    /**
+     * Number of requests in flight
+     */
+    private final AtomicInteger inFlight = new AtomicInteger();
+    /**
+     * Limits the requests to the rate the panel allows
+     */
+    private final PterodactylRateLimiter limiter;
+    /**
+     * Fails the requests fast while the panel is down
+     */
+    private final PterodactylCircuitBreaker breaker;
+    /**
+     * Retries the requests that failed for a transient reason
+     */
+    private final PterodactylRetry retry = new PterodactylRetry();
+    /**
+     * The number of nanoseconds a request can wait for the rate limit
+     */
+    private final long queueTimeoutNanos;
+    /**
+     * Whether this client has been replaced by a new one
+     */
+    private volatile boolean closed;
+
+    /**
+     * Create a new client
+     *
+     * @param url                     The URL of the Pterodactyl panel
+     * @param apiKey                  The client API key
+     * @param httpThreads             The number of threads used to handle responses
+     * @param rateLimit               The number of requests the panel allows per minute
+     * @param queueTimeout            The number of seconds a request can wait for the rate limit
+     * @param breakerFailureThreshold The number of consecutive failures that stops sending requests to the panel (0 to disable)
+     * @param breakerOpenDuration     The number of seconds to stop sending requests before checking the panel again
+     */
+    public PterodactylClient(URI url, String apiKey, int httpThreads, int rateLimit, int queueTimeout, int breakerFailureThreshold, int breakerOpenDuration) {
+        this.url = url;
+        this.apiKey = apiKey;
+
+        int id = buildCount.incrementAndGet();
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, httpThreads), runnable -> {
+            Thread thread = new Thread(runnable, "BungeePteroPower HTTP #" + id + "-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger bodyThreadNumber = new AtomicInteger();
+        this.bodyExecutor = Executors.newFixedThreadPool(Math.max(1, httpThreads), runnable -> {
+            Thread thread = new Thread(runnable, "BungeePteroPower HTTP Body #" + id + "-" + bodyThreadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofSeconds(10))
+                .executor(executor)
+                .build();
+        this.limiter = new PterodactylRateLimiter(rateLimit, "BungeePteroPower Rate Limit #" + id);
+        this.queueTimeoutNanos = TimeUnit.SECONDS.toNanos(queueTimeout);
+        this.breaker = new PterodactylCircuitBreaker(url.getHost(), breakerFailureThreshold, breakerOpenDuration);
+    }
+
+    /**
+     * Create a request builder for the path with the authorization header
+     *
+     * @param path The API path (e.g. "/api/client/servers/1234abcd/power")
+     * @return The request builder
+     */
+    public HttpRequest.Builder newRequest(String path) {
+        return HttpRequest.newBuilder()
+                .uri(URI.create(url.resolve(path).toString()))
+                .header("Accept", "application/json")
+                .header("Authorization", "Bearer " + apiKey);
+    }
+
+    /**
+     * Send a request reading the panel over the shared connection pool
+     *
+     * @param request The request to send
+     * @return A future that completes with the response
+     */
+    public CompletableFuture<HttpResponse<String>> send(HttpRequest request) {
+        return send(request, PterodactylRetry.Operation.READ, PterodactylRateLimiter.Priority.NORMAL);
+    }
+
+    /**
+     * Send a request over the shared connection pool
+     *
+     * @param request   The request to send
+     * @param operation The kind of the request, deciding how it is retried
+     * @param priority  The priority of the request while waiting for the rate limit
+     * @return A future that completes with the response
+     */
+    public CompletableFuture<HttpResponse<String>> send(HttpRequest request, PterodactylRetry.Operation operation, PterodactylRateLimiter.Priority priority) {
+        return send(request, HttpResponse.BodyHandlers.ofString(), operation, priority);
+    }
+
+    /**
+     * Send a request reading the panel over the shared connection pool, and read the body as a stream while it is received.
+     * The reader runs on the body executor of this client, and the body is closed once read.
+     *
+     * @param request  The request to send
+     * @param priority The priority of the request while waiting for the rate limit
+     * @param reader   Reads the body
+     * @param <T>      The type read from the body
+     * @return A future that completes with the value read from the body
+     */
+    public <T> CompletableFuture<T> sendStreaming(HttpRequest request, PterodactylRateLimiter.Priority priority, BodyReader<T> reader) {
+        // Keep the executors alive until the body is read
+        inFlight.incrementAndGet();
+        return send(request, HttpResponse.BodyHandlers.ofInputStream(), PterodactylRetry.Operation.READ, priority)
+                .thenApplyAsync(response -> {
+                    try (InputStream body = response.body()) {
+                        return reader.read(response.statusCode(), body);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }, bodyExecutor)
+                .whenComplete((value, e) -> release());
+    }
+
+    /**
+     * Reads a streamed response body
+     *
+     * @param <T> The type read from the body
+     */
+    @FunctionalInterface
+    public interface BodyReader<T> {
+        /**
+         * Read the body
+         *
+         * @param statusCode The status code of the response
+         * @param body       The body
+         * @return The value read
+         * @throws IOException If the body cannot be read
+         */
+        T read(int statusCode, InputStream body) throws IOException;
+    }
+
+    /**
+     * Send a request with the body handler once the rate limit allows it, retrying transient failures
+     *
+     * @param request     The request to send
+     * @param bodyHandler The body handler
+     * @param operation   The kind of the request, deciding how it is retried
+     * @param priority    The priority of the request while waiting for the rate limit
+     * @param <T>         The type of the body
+     * @return A future that completes with the response
+     */
+    private <T> CompletableFuture<HttpResponse<T>> send(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler, PterodactylRetry.Operation operation, PterodactylRateLimiter.Priority priority) {
+        inFlight.incrementAndGet();
+        long deadline = System.nanoTime() + queueTimeoutNanos;
+        String name = request.method() + " " + request.uri().getPath();
+        return retry.run(operation, name, () -> sendLimited(request, bodyHandler, operation, priority, deadline))
+                .whenComplete((response, e) -> release());
+    }
+
+    /**
+     * Count down the requests in flight, and release the executors once the last request of a replaced client is done
+     */
+    private void release() {
+        if (inFlight.decrementAndGet() == 0 && closed) {
+            shutdown();
+        }
+    }
+
+    /**
+     * Wait for the rate limit and send the request, and send it again if the panel throttled it
+     *
+     * @param request     The request to send
+     * @param bodyHandler The body handler
+     * @param operation   The kind of the request, deciding the timeout of the response
+     * @param priority    The priority of the request while waiting for the rate limit
+     * @param deadline    The time to stop waiting for the rate limit, in System.nanoTime()
+     * @param <T>         The type of the body
+     * @return A future that completes with the response
+     */
+    private <T> CompletableFuture<HttpResponse<T>> sendLimited(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler, PterodactylRetry.Operation operation, PterodactylRateLimiter.Priority priority, long deadline) {
+        // Fail fast while the panel is down
+        if (!breaker.tryAcquire()) {
+            return CompletableFuture.failedFuture(new PowerControllerUnavailableException("The panel is unavailable: " + url.getHost()));
+        }
+
+        return limiter.acquire(priority, deadline)
+                .thenCompose(v -> {
+                    requestCount.incrementAndGet();
+                    return client.sendAsync(request, bodyHandler)
+                            .orTimeout(operation.getAttemptTimeout(), TimeUnit.SECONDS);
+                })
+                .whenComplete(this::recordOutcome)
+                .thenCompose(response -> {
+                    if (response.version() == HttpClient.Version.HTTP_2) {
+                        http2Count.incrementAndGet();
+                    }
+                    limiter.onResponse(response);
+                    // Wait in the queue again instead of failing when throttled
+                    if (response.statusCode() == 429 && System.nanoTime() - deadline < 0) {
+                        discard(response);
+                        return sendLimited(request, bodyHandler, operation, priority, deadline);
+                    }
+                    return CompletableFuture.completedFuture(response);
+                });
+    }
+
+    /**
+     * Tell the circuit breaker whether the panel answered
+     *
+     * @param response The response, or null if failed
+     * @param e        The error, or null if answered
+     */
+    private void recordOutcome(HttpResponse<?> response, Throwable e) {
+        if (e != null) {
+            if (PterodactylRetry.classify(e) != null) {
+                // No answer from the panel
+                breaker.onFailure();
+            } else {
+                // Not sent
+                breaker.release();
+            }
+        } else if (response.statusCode() >= 500 && response.statusCode() != 501) {
+            breaker.onFailure();
+        } else {
+            breaker.onSuccess();
+        }
+    }
+
+    /**
+     * Close the body of a response that is not used
+     *
+     * @param response The response
+     */
+    static void discard(HttpResponse<?> response) {
+        if (response.body() instanceof InputStream) {
+            try {
+                ((InputStream) response.body()).close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    /**
+     * Shut down the executors and the rate limiter
+     */
+    private void shutdown() {
+        executor.shutdown();
+        bodyExecutor.shutdown();
+        limiter.close();
+    }
+
+    /**
+     * Create a websocket builder sharing the connection pool of this client
+     *
+     * @return The websocket builder
+     */
+    public WebSocket.Builder newWebSocketBuilder() {
+        return client.newWebSocketBuilder()
+                .header("Origin", url.getScheme() + "://" + url.getAuthority());
+    }
+
+    /**
+     * Close this client.
+     * Requests in flight are allowed to finish before the executors are shut down.
+     */
+    public void close() {
+        closed = true;
+        if (inFlight.get() == 0) {
+            shutdown();
+        }
+    }
+
+    /**
+     * Get the number of requests sent with this client
+     *
+     * @return The number of requests
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Get the number of responses received over HTTP/2.
+     * The client cannot tell when a connection is opened, but HTTP/2 requests to the panel share one multiplexed connection.
+     *
+     * @return The number of responses received over HTTP/2
+     */
+    public long getHttp2Count() {
+        return http2Count.get();
+    }
+
+    /**
+     * Get the rate limiter of this client
+     *
+     * @return The rate limiter
+     */
+    public PterodactylRateLimiter getLimiter() {
+        return limiter;
+    }
+
+    /**
+     * Get the circuit breaker of this client
+     *
+     * @return The circuit breaker
+     */
+    public PterodactylCircuitBreaker getBreaker() {
+        return breaker;
+    }
+
+    /**
+     * Get the retry layer of this client
+     *
+     * @return The retry layer
+     */
+    public PterodactylRetry getRetry() {
+        return retry;
+    }
+
+    /**
+     * Get the number of clients built since the plugin was enabled
+     *
+     * @return The number of clients built
+     */
+    public static int getBuildCount() {
+        return buildCount.get();
+    }
+}
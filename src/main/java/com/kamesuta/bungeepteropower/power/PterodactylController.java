@@ -1,21 +1,25 @@
 package com.kamesuta.bungeepteropower.power;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.kamesuta.bungeepteropower.Config;
 import com.kamesuta.bungeepteropower.api.PowerController;
 import com.kamesuta.bungeepteropower.api.PowerSignal;
+import com.kamesuta.bungeepteropower.api.PowerStatus;
+import com.kamesuta.bungeepteropower.api.PowerStatusListener;
 
-import java.net.URI;
-import java.net.http.HttpClient;
+import javax.annotation.Nullable;
 import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
-import java.util.concurrent.TimeUnit;
-import java.util.function.Consumer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 
 import static com.kamesuta.bungeepteropower.BungeePteroPower.logger;
@@ -25,6 +29,115 @@ import static com.kamesuta.bungeepteropower.BungeePteroPower.plugin;
  * Pterodactyl API client.
  */
 public class PterodactylController implements PowerController {
+    /**
+     * Shared HTTP clients keyed by the panel name
+     */
+    private volatile Map<String, PterodactylClient> clients = createClients();
+    /**
+     * The latest resource usage fetched for each server, keyed by the server name
+     */
+    private final ConcurrentMap<String, ServerResources> resources = new ConcurrentHashMap<>();
+    /**
+     * Power status pushed from the server websockets
+     */
+    private final PterodactylStatusStream statusStream = new PterodactylStatusStream(this::getClient);
+
+    /**
+     * Create a client for each panel in the current configuration
+     *
+     * @return The clients keyed by the panel name
+     */
+    private static Map<String, PterodactylClient> createClients() {
+        Map<String, PterodactylClient> clients = new TreeMap<>();
+        for (String panelName : plugin.config.getPanelNames()) {
+            Config.PanelConfig panel = Objects.requireNonNull(plugin.config.getPanelConfig(panelName));
+            clients.put(panelName, new PterodactylClient(panel.url, panel.apiKey, panel.httpThreads,
+                    panel.rateLimit, panel.rateLimitQueueTimeout,
+                    panel.breakerFailureThreshold, panel.breakerOpenDuration));
+        }
+        return clients;
+    }
+
+    /**
+     * Rebuild the HTTP clients with the current configuration.
+     * The old clients are closed after their requests in flight are finished.
+     */
+    public void reloadClient() {
+        Map<String, PterodactylClient> oldClients = clients;
+        clients = createClients();
+        // Websockets of the old clients fall back to polling until they are subscribed again
+        statusStream.closeAll();
+        oldClients.values().forEach(PterodactylClient::close);
+    }
+
+    /**
+     * Close the HTTP clients and the websockets
+     */
+    public void close() {
+        statusStream.closeAll();
+        clients.values().forEach(PterodactylClient::close);
+    }
+
+    /**
+     * Subscribe to the power status pushed from the server websocket.
+     *
+     * @param serverName The name of the server
+     * @param serverId   The Pterodactyl server ID
+     * @param listener   The listener
+     * @return A handle to unsubscribe, or null if the websocket is disabled
+     */
+    @Override
+    public @Nullable Runnable subscribeStatus(String serverName, String serverId, PowerStatusListener listener) {
+        if (!plugin.config.pterodactylUseWebsocket) {
+            return null;
+        }
+        return statusStream.subscribe(serverName, serverId, listener);
+    }
+
+    /**
+     * Get the shared HTTP client of the panel in the pterodactyl section
+     *
+     * @return The client
+     */
+    public PterodactylClient getClient() {
+        return clients.get(Config.PanelConfig.DEFAULT);
+    }
+
+    /**
+     * Get the shared HTTP client of the panel the server is on.
+     * Servers on a panel that is not configured use the panel in the pterodactyl section.
+     *
+     * @param serverName The name of the server
+     * @return The client
+     */
+    public PterodactylClient getClient(String serverName) {
+        Map<String, PterodactylClient> current = clients;
+        Config.ServerConfig server = plugin.config.getServerConfig(serverName);
+        PterodactylClient client = server != null ? current.get(server.panel) : null;
+        return client != null ? client : current.get(Config.PanelConfig.DEFAULT);
+    }
+
+    /**
+     * Get the shared HTTP clients of all panels
+     *
+     * @return The clients keyed by the panel name
+     */
+    public Map<String, PterodactylClient> getClients() {
+        return Collections.unmodifiableMap(clients);
+    }
+
+    /**
+     * Check if the panel the server is on is taking requests.
+     *
+     * @param serverName The name of the server
+     * @param serverId   The Pterodactyl server ID
+     * @return false while the panel is down and requests fail fast
+     */
+    @Override
+    public boolean isAvailable(String serverName, String serverId) {
+        return getClient(serverName).getBreaker().isAvailable();
+    }
+
     /**
      * Send a power signal to the Pterodactyl server.
      *
@@ -40,23 +153,25 @@ public class PterodactylController implements PowerController {
         logger.info(String.format("%s server: %s (Pterodactyl server ID: %s)", doing, serverName, serverId));
 
         // Create a path
+        PterodactylClient client = getClient(serverName);
         String path = "/api/client/servers/" + serverId + "/power";
 
-        HttpClient client = HttpClient.newHttpClient();
-
         // Create a JSON body to send power signal
         String jsonBody = "{\"signal\": \"" + signal + "\"}";
 
         // Create a request
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(plugin.config.pterodactylUrl.resolve(path).toString()))
+        HttpRequest request = client.newRequest(path)
                 .header("Content-Type", "application/json")
-                .header("Authorization", "Bearer " + plugin.config.pterodactylApiKey)
                 .POST(HttpRequest.BodyPublishers.ofString(jsonBody))
                 .build();
 
+        // Players are waiting for the start signal, so it goes ahead of the other requests
+        PterodactylRateLimiter.Priority priority = signalType == PowerSignal.START
+                ? PterodactylRateLimiter.Priority.HIGH
+                : PterodactylRateLimiter.Priority.NORMAL;
+
         // Execute request and register a callback
-        return client.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+        return client.send(request, PterodactylRetry.Operation.POWER, priority)
                 .thenApply(status -> {
                     int code = status.statusCode();
                     if (code == 204) {
@@ -91,7 +206,7 @@ public class PterodactylController implements PowerController {
 
         // Wait until the power status becomes offline
         logger.info(String.format("Waiting server to stop: %s (Pterodactyl server ID: %s)", serverName, serverId));
-        return waitUntilOffline(serverName, serverId)
+        return plugin.statusFeed.waitUntil(serverName, PowerStatus.OFFLINE, plugin.config.restoreTimeout)
                 .thenCompose((v) -> {
                     // Restore the backup
                     logger.info(String.format("Successfully stopped server: %s", serverName));
@@ -100,93 +215,117 @@ public class PterodactylController implements PowerController {
     }
 
     /**
-     * Restore from a backup.
+     * Get the sum of the memory limits of the servers listed on the panels.
      *
-     * @param serverName The name of the server
-     * @param serverId   The Pterodactyl server ID
-     * @param backupUuid The UUID of the backup
-     * @return A future that completes when the request is finished
+     * @param servers The Bungeecord server names to sum up
+     * @return A future that completes with the total memory limit in MB
      */
+    public CompletableFuture<Integer> getTotalMemory(Set<String> servers) {
+        return getMemoryLimits().thenApply(limits -> servers.stream()
+                .mapToInt(serverName -> limits.getOrDefault(serverName, 0))
+                .sum());
+    }
 
-    public CompletableFuture<Void> getTotalMemory(Set<String> servers) {
-        String signal = signalType.getSignal();
-        String doing = signalType == PowerSignal.START ? "Starting" : "Stopping";
-        logger.info(String.format("%s server: %s (Pterodactyl server ID: %s)", doing, serverName, serverId));
-
-        // Create a path
-        String path = "/api/client/servers/";
-
-        HttpClient client = HttpClient.newHttpClient();
-
-        // Create a JSON body to send power signal
-        String jsonBody = "{\"signal\": \"" + signal + "\"}";
-
-        // Create a request
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(plugin.config.pterodactylUrl.resolve(path).toString()))
-                .header("Content-Type", "application/json")
-                .header("Authorization", "Bearer " + plugin.config.pterodactylApiKey)
-                .POST(HttpRequest.BodyPublishers.ofString(jsonBody))
-                .build();
+    /**
+     * Get the memory limits of the configured servers listed on the panels.
+     * The listings of the panels the servers are on are fetched concurrently, and all pages of a listing are parsed as they are received.
+     * The limits are keyed by the server name because server IDs are only unique within a panel.
+     *
+     * @return A future that completes with the memory limits in MB keyed by the Bungeecord server name
+     */
+    public CompletableFuture<Map<String, Integer>> getMemoryLimits() {
+        return fetchListings()
+                .thenApply(listings -> {
+                    // Map the Pterodactyl server IDs of each panel to the Bungeecord server names
+                    Map<String, Integer> limits = new HashMap<>();
+                    listings.forEach((serverName, listing) -> {
+                        Integer limit = listing.limits.get(plugin.config.getServerConfig(serverName).id);
+                        if (limit != null) {
+                            limits.put(serverName, limit);
+                        }
+                    });
+                    return limits;
+                })
+                .exceptionally(e -> {
+                    logger.log(Level.WARNING, "Failed to get memory limits", e);
+                    throw new CompletionException(e);
+                });
+    }
 
-        // Execute request and register a callback
-        return client.sendAsync(request, HttpResponse.BodyHandlers.ofString())
-                .thenApply(status -> {
-                    int code = status.statusCode();
-                    if (code == 200) {
-                        // Parse JSON (attributes.current_state)
-                        JsonObject root = JsonParser.parseString(status.body()).getAsJsonObject();
-                        JsonArray dataArray = root.getAsJsonArray("data");
-
-                        // Initialize the sum variable
-                        int memorySum = 0;
-
-                        // Iterate through the data array and sum the memory values
-                        for (JsonElement element : dataArray) {
-                            JsonObject dataObject = element.getAsJsonObject();
-                            JsonObject attributes = dataObject.getAsJsonObject("attributes");
-                            JsonObject limits = attributes.getAsJsonObject("limits");
-
-                            // Get the memory value and add it to the sum
-                            int memory = limits.get("memory").getAsInt();
-                            memorySum += memory;
+    /**
+     * Get the nodes the configured servers are on.
+     * Nodes of different panels are told apart by prefixing the panel name ("panel:node"), except for the default panel.
+     *
+     * @return A future that completes with the node names keyed by the Bungeecord server name
+     */
+    public CompletableFuture<Map<String, String>> getNodes() {
+        return fetchListings()
+                .thenApply(listings -> {
+                    Map<String, String> nodes = new HashMap<>();
+                    listings.forEach((serverName, listing) -> {
+                        Config.ServerConfig server = plugin.config.getServerConfig(serverName);
+                        String node = listing.nodes.get(server.id);
+                        if (node != null) {
+                            nodes.put(serverName, server.panel.equals(Config.PanelConfig.DEFAULT) ? node : server.panel + ":" + node);
                         }
-                        return memorySum;
-                    } else {
-                        String message = "Failed to check total memory, Response: " + code + " code";
-                        logger.warning(message);
-                        logger.info("Request: " + request + ", Response: " + code + " " + status.body());
-                        throw new RuntimeException(message);
-                    }
+                    });
+                    return nodes;
                 })
                 .exceptionally(e -> {
-                    logger.log(Level.WARNING, "Failed to send " + signal + " signal to the server: " + serverName, e);
+                    logger.log(Level.WARNING, "Failed to get the nodes of the servers", e);
                     throw new CompletionException(e);
                 });
+    }
 
+    /**
+     * Fetch the server listing of each panel the configured servers are on, concurrently.
+     *
+     * @return A future that completes with the listing of the panel of each server, keyed by the Bungeecord server name
+     */
+    private CompletableFuture<Map<String, PterodactylServerListing.Page>> fetchListings() {
+        // Fetch the listing of each panel used by a server
+        Map<PterodactylClient, CompletableFuture<PterodactylServerListing.Page>> listings = new HashMap<>();
+        Map<String, PterodactylClient> serverClients = new HashMap<>();
+        for (String serverName : plugin.config.getServerNames()) {
+            PterodactylClient client = getClient(serverName);
+            serverClients.put(serverName, client);
+            listings.computeIfAbsent(client, PterodactylServerListing::fetch);
+        }
+
+        return CompletableFuture.allOf(listings.values().toArray(new CompletableFuture<?>[0]))
+                .thenApply(v -> {
+                    Map<String, PterodactylServerListing.Page> result = new HashMap<>();
+                    serverClients.forEach((serverName, client) -> result.put(serverName, listings.get(client).join()));
+                    return result;
+                });
     }
 
+    /**
+     * Restore from a backup.
+     *
+     * @param serverName The name of the server
+     * @param serverId   The Pterodactyl server ID
+     * @param backupUuid The UUID of the backup
+     * @return A future that completes when the request is finished
+     */
     private CompletableFuture<Void> restoreBackup(String serverName, String serverId, String backupUuid) {
         logger.info(String.format("Restoring from backup: %s to server: %s (Pterodactyl server ID: %s)", backupUuid, serverName, serverId));
 
         // Create a path
+        PterodactylClient client = getClient(serverName);
         String path = "/api/client/servers/" + serverId + "/backups/" + backupUuid + "/restore";
 
-        HttpClient client = HttpClient.newHttpClient();
-
         // Create a JSON body to delete all files
         String jsonBody = "{\"truncate\":true}";
 
         // Create a request
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(plugin.config.pterodactylUrl.resolve(path).toString()))
+        HttpRequest request = client.newRequest(path)
                 .header("Content-Type", "application/json")
-                .header("Authorization", "Bearer " + plugin.config.pterodactylApiKey)
                 .POST(HttpRequest.BodyPublishers.ofString(jsonBody))
                 .build();
 
         // Execute request and register a callback
-        return client.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+        return client.send(request, PterodactylRetry.Operation.RESTORE, PterodactylRateLimiter.Priority.NORMAL)
                 .thenApply(status -> {
                     int code = status.statusCode();
                     if (code == 204) {
@@ -206,66 +345,64 @@ public class PterodactylController implements PowerController {
     }
 
     /**
-     * Wait until the power status becomes offline.
+     * Get the power status of the server.
+     * The resource usage received with it is cached for {@link #getCachedResources(String)}.
      *
      * @param serverName The name of the server
      * @param serverId   The Pterodactyl server ID
-     * @return A future that waits until the server becomes offline
+     * @return A future that completes with the power status
      */
-    private CompletableFuture<Void> waitUntilOffline(String serverName, String serverId) {
-        CompletableFuture<Void> future = new CompletableFuture<Void>().orTimeout(plugin.config.restoreTimeout, TimeUnit.SECONDS);
-        // Wait until the server becomes offline
-        Consumer<String> callback = new Consumer<>() {
-            @Override
-            public void accept(String powerStatus) {
-                // Do nothing if timeout or already completed
-                if (future.isDone()) {
-                    return;
-                }
-                // Complete if the server is offline
-                if (powerStatus.equals("offline")) {
-                    future.complete(null);
-                    return;
-                }
-                // Otherwise schedule another ping
-                logger.fine("Server is still " + powerStatus + ". Waiting for it to be offline: " + serverName);
-                plugin.getProxy().getScheduler().schedule(plugin, () -> getPowerStatus(serverName, serverId).thenAccept(this), plugin.config.restorePingInterval, TimeUnit.SECONDS);
-            }
-        };
-        // Initial check
-        getPowerStatus(serverName, serverId).thenAccept(callback);
-
-        return future;
+    @Override
+    public CompletableFuture<PowerStatus> getPowerStatus(String serverName, String serverId) {
+        return getResources(serverName, serverId).thenApply(result -> result.status);
     }
 
     /**
-     * Get the power status of the server.
+     * Get the last resource usage of the server fetched with {@link #getPowerStatus(String, String)}.
+     *
+     * @param serverName The name of the server
+     * @return The resource usage, or null if it was never fetched
+     */
+    public @Nullable ServerResources getCachedResources(String serverName) {
+        return resources.get(serverName);
+    }
+
+    /**
+     * Get the power status and resource usage of the server.
      *
      * @param serverName The name of the server
      * @param serverId   The Pterodactyl server ID
-     * @return A future that completes with the power status
+     * @return A future that completes with the resource usage
      */
-    private CompletableFuture<String> getPowerStatus(String serverName, String serverId) {
+    private CompletableFuture<ServerResources> getResources(String serverName, String serverId) {
         // Create a path
+        PterodactylClient client = getClient(serverName);
         String path = "/api/client/servers/" + serverId + "/resources";
 
-        HttpClient client = HttpClient.newHttpClient();
-
         // Create a request
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(plugin.config.pterodactylUrl.resolve(path).toString()))
-                .header("Authorization", "Bearer " + plugin.config.pterodactylApiKey)
+        HttpRequest request = client.newRequest(path)
                 .GET()
                 .build();
 
         // Execute request and register a callback
-        return client.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+        return client.send(request, PterodactylRetry.Operation.READ, PterodactylRateLimiter.Priority.LOW)
                 .thenApply(status -> {
                     int code = status.statusCode();
                     if (code == 200) {
-                        // Parse JSON (attributes.current_state)
-                        JsonObject root = JsonParser.parseString(status.body()).getAsJsonObject();
-                        return root.getAsJsonObject("attributes").get("current_state").getAsString();
+                        // Parse JSON (attributes.current_state, attributes.resources)
+                        JsonObject attributes = JsonParser.parseString(status.body()).getAsJsonObject().getAsJsonObject("attributes");
+                        String powerStatus = attributes.get("current_state").getAsString();
+                        PowerStatus state = PowerStatus.fromStatus(powerStatus);
+                        if (state == null) {
+                            throw new RuntimeException("Unknown power status of server: " + serverName + ": " + powerStatus);
+                        }
+                        JsonObject usage = attributes.getAsJsonObject("resources");
+                        ServerResources result = new ServerResources(state,
+                                usage != null && usage.has("memory_bytes") ? usage.get("memory_bytes").getAsLong() : 0,
+                                usage != null && usage.has("cpu_absolute") ? usage.get("cpu_absolute").getAsDouble() : 0,
+                                System.nanoTime());
+                        resources.put(serverName, result);
+                        return result;
                     } else {
                         String message = "Failed to get power status of server: " + serverName + ". Response code: " + code;
                         logger.warning(message);
@@ -0,0 +1,314 @@
+package com.kamesuta.bungeepteropower.power;
+
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.kamesuta.bungeepteropower.BungeePteroPower.logger;
+
+/**
+ * Token bucket limiting the requests sent to a Pterodactyl panel.
+ * Requests wait in a queue ordered by priority until a token is available or their deadline passes.
+ * The bucket follows the X-RateLimit-Remaining and Retry-After headers returned by the panel.
+ */
+public class PterodactylRateLimiter {
+    /**
+     * Priority of a request in the queue
+     */
+    public enum Priority {
+        /**
+         * Requests players are waiting for (e.g. start signals)
+         */
+        HIGH,
+        /**
+         * Other requests changing the servers (e.g. stop signals, restores)
+         */
+        NORMAL,
+        /**
+         * Requests that can wait (e.g. status polls, listings)
+         */
+        LOW,
+    }
+
+    /**
+     * The maximum number of tokens
+     */
+    private final double capacity;
+    /**
+     * Tokens added per nanosecond
+     */
+    private final double tokensPerNano;
+    /**
+     * Runs the queue when tokens become available
+     */
+    private final ScheduledExecutorService timer;
+    /**
+     * Waiting requests, by priority and then in arrival order (guarded by this)
+     */
+    private final PriorityQueue<Waiter> queue = new PriorityQueue<>(Comparator
+            .comparing((Waiter waiter) -> waiter.priority)
+            .thenComparingLong(waiter -> waiter.sequence));
+    /**
+     * The available tokens (guarded by this)
+     */
+    private double tokens;
+    /**
+     * When the tokens were last refilled, in System.nanoTime() (guarded by this)
+     */
+    private long refilledAt = System.nanoTime();
+    /**
+     * No request is sent before this time in System.nanoTime(), as told by Retry-After (guarded by this)
+     */
+    private long pausedUntil = refilledAt;
+    /**
+     * Arrival counter for the queue order (guarded by this)
+     */
+    private long sequence;
+    /**
+     * The scheduled run of the queue (guarded by this)
+     */
+    private ScheduledFuture<?> drainTask;
+    /**
+     * When the scheduled run of the queue happens, in System.nanoTime() (guarded by this)
+     */
+    private long drainAt;
+    /**
+     * Number of requests that had to wait for a token
+     */
+    private final AtomicLong queuedCount = new AtomicLong();
+    /**
+     * Number of requests whose deadline passed in the queue
+     */
+    private final AtomicLong expiredCount = new AtomicLong();
+    /**
+     * Number of 429 responses from the panel
+     */
+    private final AtomicLong throttledCount = new AtomicLong();
+
+    /**
+     * Create a new limiter
+     *
+     * @param requestsPerMinute The number of requests the panel allows per minute
+     * @param name              The name of the timer thread
+     */
+    public PterodactylRateLimiter(int requestsPerMinute, String name) {
+        this.capacity = Math.max(1, requestsPerMinute);
+        this.tokensPerNano = capacity / TimeUnit.MINUTES.toNanos(1);
+        this.tokens = capacity;
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Wait for a token
+     *
+     * @param priority The priority of the request
+     * @param deadline The time to give up, in System.nanoTime()
+     * @return A future that completes when the request may be sent, or fails with QueueTimeoutException when the deadline passes
+     */
+    public CompletableFuture<Void> acquire(Priority priority, long deadline) {
+        Waiter waiter = new Waiter(priority, deadline);
+        synchronized (this) {
+            waiter.sequence = sequence++;
+            // Take the token right away if nobody is waiting ahead
+            refill(System.nanoTime());
+            if (queue.isEmpty() && tokens >= 1 && System.nanoTime() - pausedUntil >= 0) {
+                tokens -= 1;
+                return CompletableFuture.completedFuture(null);
+            }
+            queue.add(waiter);
+        }
+        queuedCount.incrementAndGet();
+        drain();
+        return waiter.future;
+    }
+
+    /**
+     * Follow the rate limit headers of the response
+     *
+     * @param response The response from the panel
+     */
+    public void onResponse(HttpResponse<?> response) {
+        long now = System.nanoTime();
+        synchronized (this) {
+            refill(now);
+
+            // The panel knows better how many requests are left
+            response.headers().firstValue("X-RateLimit-Remaining").ifPresent(value -> {
+                try {
+                    tokens = Math.min(tokens, Integer.parseInt(value.trim()));
+                } catch (NumberFormatException e) {
+                    // Ignore
+                }
+            });
+
+            // Pause until the panel accepts requests again
+            if (response.statusCode() == 429) {
+                throttledCount.incrementAndGet();
+                long retryAfter = response.headers().firstValue("Retry-After")
+                        .map(PterodactylRateLimiter::parseSeconds)
+                        .orElse(1L);
+                tokens = 0;
+                pausedUntil = Math.max(pausedUntil, now + TimeUnit.SECONDS.toNanos(retryAfter));
+                logger.warning(String.format("The panel is rate limiting requests. Pausing for %d sec", retryAfter));
+            }
+        }
+        drain();
+    }
+
+    /**
+     * Stop the timer. Requests still waiting fail.
+     */
+    public void close() {
+        List<Waiter> remaining;
+        synchronized (this) {
+            remaining = new ArrayList<>(queue);
+            queue.clear();
+        }
+        remaining.forEach(waiter -> waiter.future.completeExceptionally(new QueueTimeoutException("The panel client is closed")));
+        timer.shutdown();
+    }
+
+    /**
+     * Let the waiting requests through as far as the tokens allow, and schedule the next run
+     */
+    private void drain() {
+        List<Waiter> granted = new ArrayList<>();
+        List<Waiter> expired = new ArrayList<>();
+        synchronized (this) {
+            long now = System.nanoTime();
+            refill(now);
+
+            // Drop the requests whose deadline passed
+            for (Iterator<Waiter> it = queue.iterator(); it.hasNext(); ) {
+                Waiter waiter = it.next();
+                if (now - waiter.deadline >= 0) {
+                    it.remove();
+                    expired.add(waiter);
+                }
+            }
+
+            // Let the requests through in order of priority
+            while (!queue.isEmpty() && tokens >= 1 && now - pausedUntil >= 0) {
+                tokens -= 1;
+                granted.add(queue.poll());
+            }
+
+            // Run again when the next token is available or the next deadline passes
+            if (!queue.isEmpty() && !timer.isShutdown()) {
+                long nextToken = now + (long) Math.ceil(Math.max(0, 1 - tokens) / tokensPerNano);
+                if (pausedUntil - nextToken > 0) {
+                    nextToken = pausedUntil;
+                }
+                long nextDeadline = queue.stream().mapToLong(waiter -> waiter.deadline).min().orElse(nextToken);
+                long next = nextToken - nextDeadline < 0 ? nextToken : nextDeadline;
+                if (drainTask == null || next - drainAt < 0) {
+                    if (drainTask != null) {
+                        drainTask.cancel(false);
+                    }
+                    drainAt = next;
+                    drainTask = timer.schedule(() -> {
+                        synchronized (this) {
+                            drainTask = null;
+                        }
+                        drain();
+                    }, Math.max(0, next - now), TimeUnit.NANOSECONDS);
+                }
+            }
+        }
+
+        expiredCount.addAndGet(expired.size());
+        expired.forEach(waiter -> waiter.future.completeExceptionally(new QueueTimeoutException("Timed out waiting for the panel rate limit")));
+        granted.forEach(waiter -> waiter.future.complete(null));
+    }
+
+    /**
+     * Add the tokens for the time passed (must hold the lock)
+     *
+     * @param now The current time in System.nanoTime()
+     */
+    private void refill(long now) {
+        tokens = Math.min(capacity, tokens + (now - refilledAt) * tokensPerNano);
+        refilledAt = now;
+    }
+
+    /**
+     * Parse the Retry-After header
+     *
+     * @param value The header value in seconds
+     * @return The number of seconds, or 1 if it cannot be parsed
+     */
+    private static long parseSeconds(String value) {
+        try {
+            return Math.max(1, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    /**
+     * Get the number of requests that had to wait for a token
+     *
+     * @return The number of queued requests
+     */
+    public long getQueuedCount() {
+        return queuedCount.get();
+    }
+
+    /**
+     * Get the number of requests whose deadline passed in the queue
+     *
+     * @return The number of expired requests
+     */
+    public long getExpiredCount() {
+        return expiredCount.get();
+    }
+
+    /**
+     * Get the number of 429 responses from the panel
+     *
+     * @return The number of throttled responses
+     */
+    public long getThrottledCount() {
+        return throttledCount.get();
+    }
+
+    /**
+     * A request waiting for a token
+     */
+    private static class Waiter {
+        private final Priority priority;
+        private final long deadline;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private long sequence;
+
+        private Waiter(Priority priority, long deadline) {
+            this.priority = priority;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * Thrown when a request gave up waiting for the rate limit before it was sent
+     */
+    public static class QueueTimeoutException extends TimeoutException {
+        private static final long serialVersionUID = 1L;
+
+        public QueueTimeoutException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package com.kamesuta.bungeepteropower.power;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpResponse;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+import static com.kamesuta.bungeepteropower.BungeePteroPower.logger;
+
+/**
+ * Retries requests to the Pterodactyl panel that failed for a transient reason.
+ * Whether a request is retried depends on the operation: a request whose outcome is unknown
+ * (e.g. timed out after it was sent) is only retried if sending it twice is harmless.
+ */
+public class PterodactylRetry {
+    /**
+     * The delay before the first retry in milliseconds (doubled for each retry, with jitter)
+     */
+    private static final long BASE_DELAY_MILLIS = 500;
+    /**
+     * The maximum number of retries saved up in the budget of an operation
+     */
+    private static final double BUDGET_MAX = 10;
+    /**
+     * The retries earned by each request (at most one retry per five requests in the long run)
+     */
+    private static final double BUDGET_PER_REQUEST = 0.2;
+
+    /**
+     * The kind of a request to the panel, deciding how it is retried
+     */
+    public enum Operation {
+        /**
+         * Reading the state of the panel (status, listings, websocket credentials).
+         * Safe to send any number of times.
+         */
+        READ(true, 4, 10, 30),
+        /**
+         * Power signals.
+         * Sending the same signal twice leads to the same state, so they are retried even if the outcome is unknown.
+         */
+        POWER(true, 3, 10, 30),
+        /**
+         * Restoring a backup.
+         * It deletes the files of the server, so it is only retried if the request certainly did not reach the panel.
+         */
+        RESTORE(false, 2, 30, 60),
+        ;
+
+        /**
+         * Whether to retry when the request may have been processed
+         */
+        private final boolean retryUnknownOutcome;
+        /**
+         * The maximum number of attempts
+         */
+        private final int maxAttempts;
+        /**
+         * The number of seconds to wait for the response of an attempt
+         */
+        private final int attemptTimeout;
+        /**
+         * No retry is started after this number of seconds since the first attempt
+         */
+        private final int deadline;
+
+        Operation(boolean retryUnknownOutcome, int maxAttempts, int attemptTimeout, int deadline) {
+            this.retryUnknownOutcome = retryUnknownOutcome;
+            this.maxAttempts = maxAttempts;
+            this.attemptTimeout = attemptTimeout;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Get the number of seconds to wait for the response of an attempt
+         *
+         * @return The timeout in seconds
+         */
+        public int getAttemptTimeout() {
+            return attemptTimeout;
+        }
+
+        /**
+         * Get the name used in the statistics
+         *
+         * @return The name
+         */
+        public String getName() {
+            return name().toLowerCase();
+        }
+    }
+
+    /**
+     * Why an attempt failed
+     */
+    enum Failure {
+        /**
+         * The connection could not be opened, so the request was not sent
+         */
+        CONNECT(false),
+        /**
+         * The panel is unavailable (503) or throttled the request (429), so the request was not processed
+         */
+        UNAVAILABLE(false),
+        /**
+         * No response within the attempt timeout
+         */
+        TIMEOUT(true),
+        /**
+         * The panel or its reverse proxy returned 5xx or 408
+         */
+        SERVER_ERROR(true),
+        /**
+         * The connection broke while the request was in flight
+         */
+        IO(true),
+        ;
+
+        /**
+         * Whether the request may have been processed by the panel
+         */
+        private final boolean unknownOutcome;
+
+        Failure(boolean unknownOutcome) {
+            this.unknownOutcome = unknownOutcome;
+        }
+    }
+
+    /**
+     * Statistics and retry budget of each operation
+     */
+    private final Map<Operation, Stats> stats = new ConcurrentHashMap<>();
+
+    public PterodactylRetry() {
+        for (Operation operation : Operation.values()) {
+            stats.put(operation, new Stats(operation));
+        }
+    }
+
+    /**
+     * Run the request, and retry it while it fails for a transient reason.
+     * The attempt should fail with a TimeoutException if there is no response within {@link Operation#getAttemptTimeout()}.
+     *
+     * @param operation The kind of the request
+     * @param name      The name of the request for the logs
+     * @param attempt   Sends the request once
+     * @param <T>       The type of the body
+     * @return A future that completes with the last response, or fails with the last error
+     */
+    public <T> CompletableFuture<HttpResponse<T>> run(Operation operation, String name, Supplier<CompletableFuture<HttpResponse<T>>> attempt) {
+        Stats operationStats = stats.get(operation);
+        operationStats.deposit();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(operation.deadline);
+        CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+        runAttempt(operation, operationStats, name, attempt, 1, deadline, result);
+        return result;
+    }
+
+    /**
+     * Send an attempt and decide whether to retry it
+     *
+     * @param operation      The kind of the request
+     * @param operationStats The statistics of the operation
+     * @param name           The name of the request for the logs
+     * @param attempt        Sends the request once
+     * @param attemptNumber  The number of this attempt, starting at 1
+     * @param deadline       No retry is started after this time, in System.nanoTime()
+     * @param result         The future to complete with the final outcome
+     * @param <T>            The type of the body
+     */
+    private <T> void runAttempt(Operation operation, Stats operationStats, String name, Supplier<CompletableFuture<HttpResponse<T>>> attempt,
+                                int attemptNumber, long deadline, CompletableFuture<HttpResponse<T>> result) {
+        CompletableFuture<HttpResponse<T>> future;
+        try {
+            future = attempt.get();
+        } catch (Exception e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+        future.whenComplete((response, e) -> {
+            Failure failure = e != null ? classify(e) : classify(response);
+            if (failure == null) {
+                // Succeeded, or failed for a reason a retry does not fix
+                operationStats.recordAttempts(attemptNumber);
+                if (e != null) {
+                    result.completeExceptionally(e);
+                } else {
+                    result.complete(response);
+                }
+                return;
+            }
+            operationStats.recordFailure(failure);
+
+            // Retry if the operation allows it and there is budget and time left
+            long delay = BASE_DELAY_MILLIS << (attemptNumber - 1);
+            delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+            boolean retry = (operation.retryUnknownOutcome || !failure.unknownOutcome)
+                    && attemptNumber < operation.maxAttempts
+                    && System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay) - deadline < 0
+                    && operationStats.withdraw();
+            if (!retry) {
+                operationStats.recordAttempts(attemptNumber);
+                if (e != null) {
+                    result.completeExceptionally(e);
+                } else {
+                    result.complete(response);
+                }
+                return;
+            }
+
+            if (response != null) {
+                PterodactylClient.discard(response);
+            }
+            logger.info(String.format("Retrying %s after %s (attempt %d/%d in %d ms)", name, failure.name().toLowerCase(), attemptNumber + 1, operation.maxAttempts, delay));
+            CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS)
+                    .execute(() -> runAttempt(operation, operationStats, name, attempt, attemptNumber + 1, deadline, result));
+        });
+    }
+
+    /**
+     * Classify a response
+     *
+     * @param response The response
+     * @return The failure, or null if the response is final
+     */
+    private static Failure classify(HttpResponse<?> response) {
+        int code = response.statusCode();
+        if (code == 503 || code == 429) {
+            return Failure.UNAVAILABLE;
+        }
+        if (code == 408 || (code >= 500 && code != 501)) {
+            return Failure.SERVER_ERROR;
+        }
+        return null;
+    }
+
+    /**
+     * Classify an error
+     *
+     * @param e The error
+     * @return The failure, or null if retrying does not help
+     */
+    static Failure classify(Throwable e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        if (cause instanceof HttpConnectTimeoutException || cause instanceof ConnectException) {
+            return Failure.CONNECT;
+        }
+        if (cause instanceof PterodactylRateLimiter.QueueTimeoutException) {
+            // Already waited as long as allowed
+            return null;
+        }
+        if (cause instanceof TimeoutException) {
+            return Failure.TIMEOUT;
+        }
+        if (cause instanceof IOException) {
+            return Failure.IO;
+        }
+        return null;
+    }
+
+    /**
+     * Get the statistics of each operation
+     *
+     * @return The statistics keyed by the operation name
+     */
+    public Map<String, Stats> getStats() {
+        Map<String, Stats> result = new TreeMap<>();
+        stats.forEach((operation, operationStats) -> result.put(operation.getName(), operationStats));
+        return result;
+    }
+
+    /**
+     * Statistics and retry budget of an operation
+     */
+    public static class Stats {
+        /**
+         * Number of requests by the number of attempts they took (index 0 for one attempt)
+         */
+        private final AtomicLongArray attempts;
+        /**
+         * Number of failed attempts by the reason
+         */
+        private final ConcurrentMap<Failure, AtomicLong> failures = new ConcurrentHashMap<>();
+        /**
+         * Number of retries skipped because the budget was used up
+         */
+        private final AtomicLong budgetExhausted = new AtomicLong();
+        /**
+         * Retries available (guarded by this)
+         */
+        private double budget = BUDGET_MAX;
+
+        private Stats(Operation operation) {
+            this.attempts = new AtomicLongArray(operation.maxAttempts);
+        }
+
+        /**
+         * Earn budget for a new request
+         */
+        private synchronized void deposit() {
+            budget = Math.min(BUDGET_MAX, budget + BUDGET_PER_REQUEST);
+        }
+
+        /**
+         * Use budget for a retry
+         *
+         * @return false if the budget is used up
+         */
+        private boolean withdraw() {
+            synchronized (this) {
+                if (budget >= 1) {
+                    budget -= 1;
+                    return true;
+                }
+            }
+            budgetExhausted.incrementAndGet();
+            return false;
+        }
+
+        private void recordAttempts(int count) {
+            attempts.incrementAndGet(Math.min(count, attempts.length()) - 1);
+        }
+
+        private void recordFailure(Failure failure) {
+            failures.computeIfAbsent(failure, (k) -> new AtomicLong()).incrementAndGet();
+        }
+
+        /**
+         * Get the number of requests by the number of attempts they took
+         *
+         * @return The number of requests (index 0 for one attempt)
+         */
+        public long[] getAttempts() {
+            long[] result = new long[attempts.length()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = attempts.get(i);
+            }
+            return result;
+        }
+
+        /**
+         * Get the number of failed attempts by the reason
+         *
+         * @return The number of failed attempts keyed by the reason
+         */
+        public Map<String, Long> getFailures() {
+            Map<String, Long> result = new TreeMap<>();
+            failures.forEach((failure, count) -> result.put(failure.name().toLowerCase(), count.get()));
+            return result;
+        }
+
+        /**
+         * Get the number of retries skipped because the budget was used up
+         *
+         * @return The number of skipped retries
+         */
+        public long getBudgetExhausted() {
+            return budgetExhausted.get();
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.kamesuta.bungeepteropower.power;
+
+import com.google.gson.stream.JsonReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static com.kamesuta.bungeepteropower.BungeePteroPower.logger;
+
+/**
+ * Streaming reader of the server listing (/api/client/servers).
+ * Walks all pages of the listing concurrently and reads only the fields needed, without building JSON trees.
+ */
+class PterodactylServerListing {
+    /**
+     * The number of servers requested per page
+     */
+    private static final int PER_PAGE = 100;
+
+    /**
+     * Fetch all pages of the listing.
+     *
+     * @param client The HTTP client
+     * @return A future that completes with the servers of all pages
+     */
+    static CompletableFuture<Page> fetch(PterodactylClient client) {
+        // Fetch the first page to know the number of pages
+        return fetchPage(client, 1).thenCompose(first -> {
+            if (first.totalPages <= 1) {
+                return CompletableFuture.completedFuture(first);
+            }
+
+            // Fetch the remaining pages concurrently
+            List<CompletableFuture<Page>> pages = new ArrayList<>();
+            for (int page = 2; page <= first.totalPages; page++) {
+                pages.add(fetchPage(client, page));
+            }
+            return CompletableFuture.allOf(pages.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+                for (CompletableFuture<Page> page : pages) {
+                    first.limits.putAll(page.join().limits);
+                    first.nodes.putAll(page.join().nodes);
+                }
+                return first;
+            });
+        });
+    }
+
+    /**
+     * Fetch a page of the listing
+     *
+     * @param client The HTTP client
+     * @param page   The page number starting from 1
+     * @return A future that completes with the page
+     */
+    private static CompletableFuture<Page> fetchPage(PterodactylClient client, int page) {
+        // Create a path
+        String path = "/api/client/servers?page=" + page + "&per_page=" + PER_PAGE;
+
+        // Create a request
+        HttpRequest request = client.newRequest(path)
+                .GET()
+                .build();
+
+        // Execute request and parse the body while it is being received, on the body executor of the client
+        return client.sendStreaming(request, PterodactylRateLimiter.Priority.LOW, (code, body) -> {
+                    if (code == 200) {
+                        return parsePage(body);
+                    } else {
+                        String message = "Failed to get the server list (page " + page + "). Response code: " + code;
+                        logger.warning(message);
+                        throw new RuntimeException(message);
+                    }
+                });
+    }
+
+    /**
+     * Parse a page of the listing.
+     * Reads only data[].attributes.identifier, data[].attributes.node, data[].attributes.limits.memory and meta.pagination.total_pages.
+     *
+     * @param body The response body
+     * @return The page
+     * @throws IOException If the body cannot be read
+     */
+    static Page parsePage(InputStream body) throws IOException {
+        Page page = new Page();
+        JsonReader reader = new JsonReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "data":
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        readServer(reader, page);
+                    }
+                    reader.endArray();
+                    break;
+                case "meta":
+                    readMeta(reader, page);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        return page;
+    }
+
+    /**
+     * Read a server object ({"object": "server", "attributes": {...}})
+     *
+     * @param reader The reader
+     * @param page   The page to add the server to
+     * @throws IOException If the body cannot be read
+     */
+    private static void readServer(JsonReader reader, Page page) throws IOException {
+        String identifier = null;
+        String node = null;
+        int memory = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!reader.nextName().equals("attributes")) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "identifier":
+                        identifier = reader.nextString();
+                        break;
+                    case "node":
+                        node = reader.nextString();
+                        break;
+                    case "limits":
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            if (reader.nextName().equals("memory")) {
+                                memory = reader.nextInt();
+                            } else {
+                                reader.skipValue();
+                            }
+                        }
+                        reader.endObject();
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+        }
+        reader.endObject();
+
+        if (identifier != null) {
+            page.limits.put(identifier, memory);
+            if (node != null) {
+                page.nodes.put(identifier, node);
+            }
+        }
+    }
+
+    /**
+     * Read the meta object ({"pagination": {"total_pages": n, ...}})
+     *
+     * @param reader The reader
+     * @param page   The page to set the number of pages to
+     * @throws IOException If the body cannot be read
+     */
+    private static void readMeta(JsonReader reader, Page page) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!reader.nextName().equals("pagination")) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("total_pages")) {
+                    page.totalPages = reader.nextInt();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        reader.endObject();
+    }
+
+    /**
+     * A page of the listing
+     */
+    static class Page {
+        /**
+         * The memory limits in MB keyed by the Pterodactyl server ID
+         */
+        final Map<String, Integer> limits = new HashMap<>();
+        /**
+         * The names of the nodes the servers are on, keyed by the Pterodactyl server ID
+         */
+        final Map<String, String> nodes = new HashMap<>();
+        /**
+         * The number of pages in the listing
+         */
+        int totalPages = 1;
+    }
+}
@@ -0,0 +1,309 @@
+package com.kamesuta.bungeepteropower.power;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.kamesuta.bungeepteropower.api.PowerStatus;
+import com.kamesuta.bungeepteropower.api.PowerStatusListener;
+
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.WebSocket;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+import java.util.logging.Level;
+
+import static com.kamesuta.bungeepteropower.BungeePteroPower.logger;
+
+/**
+ * Pushes power status changes of Pterodactyl servers using the server websocket.
+ * One websocket is opened per server while anyone is listening to it.
+ */
+public class PterodactylStatusStream {
+    /**
+     * Supplies the current HTTP client of the panel the server is on, from the server name
+     */
+    private final Function<String, PterodactylClient> client;
+    /**
+     * Open connections keyed by the server name (server IDs are only unique within a panel)
+     */
+    private final ConcurrentMap<String, Connection> connections = new ConcurrentHashMap<>();
+
+    /**
+     * Create a new status stream
+     *
+     * @param client Supplies the current HTTP client of the panel the server is on, from the server name
+     */
+    public PterodactylStatusStream(Function<String, PterodactylClient> client) {
+        this.client = client;
+    }
+
+    /**
+     * Subscribe to the power status of the server
+     *
+     * @param serverName The name of the server
+     * @param serverId   The Pterodactyl server ID
+     * @param listener   The listener
+     * @return A handle to unsubscribe
+     */
+    public Runnable subscribe(String serverName, String serverId, PowerStatusListener listener) {
+        while (true) {
+            Connection connection = connections.computeIfAbsent(serverName, (k) -> new Connection(serverName, serverId));
+            synchronized (connection) {
+                if (connection.closed) {
+                    // The connection is closing, retry with a new one
+                    continue;
+                }
+                connection.listeners.add(listener);
+            }
+            connection.open();
+            return () -> connection.unsubscribe(listener);
+        }
+    }
+
+    /**
+     * Close all websockets.
+     * Listeners are notified so that they can fall back to polling.
+     */
+    public void closeAll() {
+        connections.values().forEach(Connection::close);
+    }
+
+    /**
+     * A websocket connection to a server
+     */
+    private class Connection implements WebSocket.Listener {
+        private final String serverName;
+        private final String serverId;
+        private final List<PowerStatusListener> listeners = new CopyOnWriteArrayList<>();
+        private final StringBuilder buffer = new StringBuilder();
+        private boolean opened;
+        private boolean closed;
+        private volatile WebSocket socket;
+
+        private Connection(String serverName, String serverId) {
+            this.serverName = serverName;
+            this.serverId = serverId;
+        }
+
+        /**
+         * Open the websocket if it is not opened yet
+         */
+        private void open() {
+            synchronized (this) {
+                if (opened || closed) {
+                    return;
+                }
+                opened = true;
+            }
+
+            PterodactylClient currentClient = client.apply(serverName);
+            fetchCredentials(currentClient)
+                    .thenCompose(credentials -> currentClient.newWebSocketBuilder()
+                            .buildAsync(URI.create(credentials.socket), this)
+                            .thenAccept(webSocket -> {
+                                synchronized (this) {
+                                    // Everyone left while connecting
+                                    if (closed) {
+                                        webSocket.abort();
+                                        return;
+                                    }
+                                    socket = webSocket;
+                                }
+                                authenticate(credentials.token);
+                            }))
+                    .exceptionally(e -> {
+                        logger.log(Level.WARNING, "Failed to open the status websocket of server: " + serverName, e);
+                        close();
+                        return null;
+                    });
+        }
+
+        /**
+         * Remove a listener, and close the websocket if nobody is listening anymore
+         *
+         * @param listener The listener to remove
+         */
+        private void unsubscribe(PowerStatusListener listener) {
+            synchronized (this) {
+                listeners.remove(listener);
+                if (!listeners.isEmpty()) {
+                    return;
+                }
+            }
+            close();
+        }
+
+        /**
+         * Close the websocket and notify the remaining listeners
+         */
+        private void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                connections.remove(serverName, this);
+            }
+            WebSocket webSocket = socket;
+            if (webSocket != null) {
+                webSocket.abort();
+            }
+            listeners.forEach(PowerStatusListener::onClosed);
+        }
+
+        /**
+         * Send the token to the websocket
+         *
+         * @param token The JWT token
+         */
+        private void authenticate(String token) {
+            WebSocket webSocket = socket;
+            if (webSocket != null) {
+                webSocket.sendText("{\"event\":\"auth\",\"args\":[\"" + token + "\"]}", true);
+            }
+        }
+
+        @Override
+        public void onOpen(WebSocket webSocket) {
+            logger.fine("Status websocket opened: " + serverName);
+            webSocket.request(1);
+        }
+
+        @Override
+        public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+            buffer.append(data);
+            if (last) {
+                String message = buffer.toString();
+                buffer.setLength(0);
+                try {
+                    handleMessage(message);
+                } catch (Exception e) {
+                    logger.log(Level.WARNING, "Failed to handle the status websocket message of server: " + serverName, e);
+                }
+            }
+            webSocket.request(1);
+            return null;
+        }
+
+        @Override
+        public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason) {
+            logger.fine("Status websocket closed: " + serverName + " (" + statusCode + " " + reason + ")");
+            close();
+            return null;
+        }
+
+        @Override
+        public void onError(WebSocket webSocket, Throwable error) {
+            logger.log(Level.WARNING, "Status websocket error of server: " + serverName, error);
+            close();
+        }
+
+        /**
+         * Handle a message from Wings
+         *
+         * @param message The JSON message ({"event": "...", "args": [...]})
+         */
+        private void handleMessage(String message) {
+            JsonObject root = JsonParser.parseString(message).getAsJsonObject();
+            String event = root.get("event").getAsString();
+            JsonArray args = root.has("args") ? root.getAsJsonArray("args") : new JsonArray();
+            switch (event) {
+                case "status":
+                    dispatch(args.get(0).getAsString());
+                    break;
+                case "stats": {
+                    // The stats are a JSON string containing the current state
+                    JsonElement state = JsonParser.parseString(args.get(0).getAsString()).getAsJsonObject().get("state");
+                    if (state != null) {
+                        dispatch(state.getAsString());
+                    }
+                    break;
+                }
+                case "token expiring":
+                    // Renew the token before it expires
+                    fetchCredentials(client.apply(serverName))
+                            .thenAccept(credentials -> authenticate(credentials.token))
+                            .exceptionally(e -> {
+                                close();
+                                return null;
+                            });
+                    break;
+                case "token expired":
+                case "jwt error":
+                    logger.warning("Status websocket authentication failed: " + serverName + " (" + event + ")");
+                    close();
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        /**
+         * Notify the listeners of the power status
+         *
+         * @param powerStatus The power status
+         */
+        private void dispatch(String powerStatus) {
+            PowerStatus status = PowerStatus.fromStatus(powerStatus);
+            if (status == null) {
+                return;
+            }
+            listeners.forEach(listener -> listener.onStatus(status));
+        }
+
+        /**
+         * Get the websocket URL and token from the panel
+         *
+         * @param currentClient The HTTP client to use
+         * @return A future that completes with the credentials
+         */
+        private CompletableFuture<Credentials> fetchCredentials(PterodactylClient currentClient) {
+            // Create a path
+            String path = "/api/client/servers/" + serverId + "/websocket";
+
+            // Create a request
+            HttpRequest request = currentClient.newRequest(path)
+                    .GET()
+                    .build();
+
+            // Execute request and register a callback
+            return currentClient.send(request)
+                    .thenApply(status -> {
+                        int code = status.statusCode();
+                        if (code == 200) {
+                            // Parse JSON (data.token, data.socket)
+                            JsonObject data = JsonParser.parseString(status.body()).getAsJsonObject().getAsJsonObject("data");
+                            return new Credentials(data.get("token").getAsString(), data.get("socket").getAsString());
+                        } else {
+                            String message = "Failed to get the websocket credentials of server: " + serverName + ". Response code: " + code;
+                            logger.warning(message);
+                            throw new RuntimeException(message);
+                        }
+                    })
+                    .exceptionally(e -> {
+                        throw new CompletionException(e);
+                    });
+        }
+    }
+
+    /**
+     * Websocket credentials
+     */
+    private static class Credentials {
+        private final String token;
+        private final String socket;
+
+        private Credentials(String token, String socket) {
+            this.token = token;
+            this.socket = socket;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.kamesuta.bungeepteropower.power;
+
+import com.kamesuta.bungeepteropower.api.PowerStatus;
+
+/**
+ * Resource usage of a server reported by /api/client/servers/{id}/resources.
+ */
+public class ServerResources {
+    /**
+     * The power status of the server
+     */
+    public final PowerStatus status;
+    /**
+     * The memory used by the server in bytes
+     */
+    public final long memoryBytes;
+    /**
+     * The CPU used by the server in percent of a core (200 for two full cores)
+     */
+    public final double cpuAbsolute;
+    /**
+     * When the usage was fetched, in System.nanoTime()
+     */
+    public final long fetchedAt;
+
+    public ServerResources(PowerStatus status, long memoryBytes, double cpuAbsolute, long fetchedAt) {
+        this.status = status;
+        this.memoryBytes = memoryBytes;
+        this.cpuAbsolute = cpuAbsolute;
+        this.fetchedAt = fetchedAt;
+    }
+}
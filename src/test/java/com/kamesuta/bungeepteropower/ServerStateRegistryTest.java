@@ -0,0 +1,92 @@
+package com.kamesuta.bungeepteropower;
+
+import com.kamesuta.bungeepteropower.api.PowerSignal;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ServerStateRegistryTest {
+    private static final String SERVER = "lobby";
+
+    private ServerStateRegistry states;
+
+    @BeforeAll
+    static void setUpLogger() {
+        BungeePteroPower.logger = Logger.getLogger("BungeePteroPowerTest");
+    }
+
+    @BeforeEach
+    void setUp() {
+        // Long enough for nothing to expire during a test
+        states = new ServerStateRegistry(state -> 600);
+    }
+
+    @Test
+    void startsAfterTheRestoreIsAccepted() {
+        states.observe(SERVER, ServerState.RUNNING);
+        assertEquals(ServerStateRegistry.Transition.APPLIED, states.begin(SERVER, PowerSignal.STOP, true));
+
+        // The server goes offline before the restore is sent
+        states.observe(SERVER, ServerState.OFFLINE);
+        assertEquals(ServerState.RESTORING, states.get(SERVER));
+        assertEquals(ServerStateRegistry.Transition.REJECTED, states.begin(SERVER, PowerSignal.START, false));
+
+        // Once the panel accepted the restore, the next offline observation ends it
+        states.complete(SERVER, ServerState.RESTORING);
+        assertEquals(ServerState.RESTORING, states.get(SERVER));
+        states.observePing(SERVER, false);
+        assertEquals(ServerState.OFFLINE, states.get(SERVER));
+        assertEquals(ServerStateRegistry.Transition.APPLIED, states.begin(SERVER, PowerSignal.START, false));
+        assertEquals(ServerState.STARTING, states.get(SERVER));
+    }
+
+    @Test
+    void observedStatesDoNotOverrideAStartInFlight() {
+        assertEquals(ServerStateRegistry.Transition.APPLIED, states.begin(SERVER, PowerSignal.START, false));
+
+        states.observe(SERVER, ServerState.OFFLINE);
+        states.observe(SERVER, ServerState.RUNNING);
+        assertEquals(ServerState.STARTING, states.get(SERVER));
+
+        // Once accepted, only running completes the start
+        states.complete(SERVER, ServerState.STARTING);
+        states.observe(SERVER, ServerState.OFFLINE);
+        assertEquals(ServerState.STARTING, states.get(SERVER));
+        states.observe(SERVER, ServerState.RUNNING);
+        assertEquals(ServerState.RUNNING, states.get(SERVER));
+    }
+
+    @Test
+    void drainIsOnlyLeftByEndDrainOrStop() {
+        states.observe(SERVER, ServerState.RUNNING);
+        assertTrue(states.beginDrain(SERVER));
+
+        states.observe(SERVER, ServerState.RUNNING);
+        assertEquals(ServerState.DRAINING, states.get(SERVER));
+
+        states.endDrain(SERVER);
+        assertEquals(ServerState.RUNNING, states.get(SERVER));
+    }
+
+    @Test
+    void expiredStatesAreKeptAsLastKnown() {
+        states = new ServerStateRegistry(state -> 0);
+        states.observe(SERVER, ServerState.RUNNING);
+        // A zero TTL expires as soon as any time passes
+        long start = System.nanoTime();
+        while (System.nanoTime() == start) {
+            Thread.onSpinWait();
+        }
+
+        assertNull(states.get(SERVER));
+        assertEquals(ServerState.RUNNING, states.getLastKnown(SERVER));
+        states.observe(SERVER, ServerState.OFFLINE);
+        assertEquals(ServerState.OFFLINE, states.getLastKnown(SERVER));
+    }
+}
@@ -0,0 +1,135 @@
+package com.kamesuta.bungeepteropower;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Compares moving the deadline of idle-stop tasks on the {@link TimingWheel} with cancelling and scheduling a new task
+ * on a scheduler, which is what {@link DelayManager} did before.
+ * A {@link ScheduledThreadPoolExecutor} stands in for the proxy scheduler, which cannot run outside the proxy.
+ * <p>
+ * Run with {@code mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.kamesuta.bungeepteropower.TimingWheelBenchmark},
+ * or from the IDE.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimingWheelBenchmark {
+    /**
+     * The idle-stop timeout in seconds, long enough for nothing to fire during the benchmark
+     */
+    private static final int TIMEOUT = 600;
+
+    /**
+     * The number of servers with a pending stop
+     */
+    @Param({"100", "10000"})
+    public int servers;
+
+    private TimingWheel wheel;
+    private TimingWheel.Timeout[] timeouts;
+    private ScheduledThreadPoolExecutor scheduler;
+    private ScheduledFuture<?>[] tasks;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BungeePteroPower.logger = Logger.getLogger("TimingWheelBenchmark");
+
+        wheel = new TimingWheel("TimingWheelBenchmark", 1, TimeUnit.SECONDS, 512, Runnable::run);
+        timeouts = new TimingWheel.Timeout[servers];
+        for (int i = 0; i < servers; i++) {
+            timeouts[i] = wheel.schedule(TIMEOUT, TimeUnit.SECONDS, () -> {
+            });
+        }
+
+        scheduler = new ScheduledThreadPoolExecutor(1);
+        scheduler.setRemoveOnCancelPolicy(true);
+        tasks = new ScheduledFuture<?>[servers];
+        for (int i = 0; i < servers; i++) {
+            tasks[i] = scheduler.schedule(() -> {
+            }, TIMEOUT, TimeUnit.SECONDS);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        wheel.stop();
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * A player switches servers: the stop of a random server is moved on the wheel
+     *
+     * @return Whether the timeout was moved
+     */
+    @Benchmark
+    public boolean wheelReschedule() {
+        int i = ThreadLocalRandom.current().nextInt(servers);
+        return timeouts[i].reschedule(TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    /**
+     * A player switches servers: the stop of a random server is cancelled and scheduled again
+     *
+     * @return The new task
+     */
+    @Benchmark
+    public ScheduledFuture<?> schedulerReschedule() {
+        int i = ThreadLocalRandom.current().nextInt(servers);
+        tasks[i].cancel(false);
+        tasks[i] = scheduler.schedule(() -> {
+        }, TIMEOUT, TimeUnit.SECONDS);
+        return tasks[i];
+    }
+
+    /**
+     * A stop is scheduled and cancelled on the wheel
+     *
+     * @return Whether the timeout was cancelled
+     */
+    @Benchmark
+    public boolean wheelScheduleCancel() {
+        return wheel.schedule(TIMEOUT, TimeUnit.SECONDS, () -> {
+        }).cancel();
+    }
+
+    /**
+     * A stop is scheduled and cancelled on the scheduler
+     *
+     * @return Whether the task was cancelled
+     */
+    @Benchmark
+    public boolean schedulerScheduleCancel() {
+        return scheduler.schedule(() -> {
+        }, TIMEOUT, TimeUnit.SECONDS).cancel(false);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(TimingWheelBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
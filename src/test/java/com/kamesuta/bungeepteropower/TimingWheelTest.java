@@ -0,0 +1,132 @@
+package com.kamesuta.bungeepteropower;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimingWheelTest {
+    /**
+     * The length of a tick in milliseconds
+     */
+    private static final int TICK = 10;
+    /**
+     * The number of slots, so that a round of the wheel is 40 ms
+     */
+    private static final int SLOTS = 4;
+
+    private TimingWheel wheel;
+
+    @BeforeAll
+    static void setUpLogger() {
+        BungeePteroPower.logger = Logger.getLogger("BungeePteroPowerTest");
+    }
+
+    @BeforeEach
+    void setUp() {
+        wheel = new TimingWheel("TimingWheelTest", TICK, TimeUnit.MILLISECONDS, SLOTS, Runnable::run);
+    }
+
+    @AfterEach
+    void tearDown() {
+        wheel.stop();
+    }
+
+    @Test
+    void firesAfterTheDelay() throws Exception {
+        FiredAt fired = new FiredAt();
+        long start = System.nanoTime();
+        wheel.schedule(25, TimeUnit.MILLISECONDS, fired);
+
+        assertTrue(fired.await(1000));
+        assertTrue(fired.elapsedSince(start) >= 25, "fired early");
+    }
+
+    @Test
+    void firesAfterSeveralRounds() throws Exception {
+        // Passes its slot twice before it is due
+        FiredAt fired = new FiredAt();
+        long start = System.nanoTime();
+        wheel.schedule(130, TimeUnit.MILLISECONDS, fired);
+
+        assertTrue(fired.await(1000));
+        assertTrue(fired.elapsedSince(start) >= 130, "fired in an earlier round");
+    }
+
+    @Test
+    void reschedulesLaterAcrossRounds() throws Exception {
+        FiredAt fired = new FiredAt();
+        long start = System.nanoTime();
+        TimingWheel.Timeout timeout = wheel.schedule(20, TimeUnit.MILLISECONDS, fired);
+
+        // Move it more than a round later, so that it is re-filed when the ticker reaches the old slot
+        assertTrue(timeout.reschedule(150, TimeUnit.MILLISECONDS));
+
+        assertFalse(fired.await(100), "fired at the old deadline");
+        assertTrue(fired.await(1000));
+        assertTrue(fired.elapsedSince(start) >= 150, "fired before the new deadline");
+    }
+
+    @Test
+    void reschedulesEarlier() throws Exception {
+        FiredAt fired = new FiredAt();
+        long start = System.nanoTime();
+        TimingWheel.Timeout timeout = wheel.schedule(10, TimeUnit.SECONDS, fired);
+
+        assertTrue(timeout.reschedule(30, TimeUnit.MILLISECONDS));
+
+        assertTrue(fired.await(1000), "still waiting for the old deadline");
+        assertTrue(fired.elapsedSince(start) >= 30, "fired early");
+    }
+
+    @Test
+    void cancelledTimeoutNeverFires() throws Exception {
+        FiredAt fired = new FiredAt();
+        TimingWheel.Timeout timeout = wheel.schedule(20, TimeUnit.MILLISECONDS, fired);
+
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        assertFalse(timeout.reschedule(20, TimeUnit.MILLISECONDS));
+        assertFalse(fired.await(150));
+    }
+
+    @Test
+    void expiredTimeoutCannotBeMovedOrCancelled() throws Exception {
+        FiredAt fired = new FiredAt();
+        TimingWheel.Timeout timeout = wheel.schedule(10, TimeUnit.MILLISECONDS, fired);
+
+        assertTrue(fired.await(1000));
+        assertFalse(timeout.reschedule(10, TimeUnit.MILLISECONDS));
+        assertFalse(timeout.cancel());
+    }
+
+    /**
+     * Records when the task ran
+     */
+    private static class FiredAt implements Runnable {
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private final AtomicLong firedAt = new AtomicLong();
+
+        @Override
+        public void run() {
+            firedAt.set(System.nanoTime());
+            latch.countDown();
+        }
+
+        private boolean await(long millis) throws InterruptedException {
+            return latch.await(millis, TimeUnit.MILLISECONDS);
+        }
+
+        private long elapsedSince(long start) {
+            return TimeUnit.NANOSECONDS.toMillis(firedAt.get() - start);
+        }
+    }
+}
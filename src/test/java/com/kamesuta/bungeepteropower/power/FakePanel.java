@@ -0,0 +1,281 @@
+package com.kamesuta.bungeepteropower.power;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stand-in for a Pterodactyl panel and Wings in tests.
+ * Serves the websocket credentials endpoint with the JDK HTTP server, and a minimal websocket server on a plain socket.
+ */
+class FakePanel implements AutoCloseable {
+    /**
+     * The GUID appended to the websocket key (RFC 6455)
+     */
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    private final HttpServer http;
+    private final ServerSocket wings;
+    private final Thread acceptThread;
+    /**
+     * Number of credentials requests, also used to issue a new token each time
+     */
+    final AtomicInteger credentialsCount = new AtomicInteger();
+    /**
+     * The status code of the credentials endpoint
+     */
+    volatile int credentialsStatus = 200;
+    /**
+     * The Authorization header of the last credentials request
+     */
+    volatile String lastAuthorization;
+    /**
+     * Holds the opening handshakes until counted down
+     */
+    volatile CountDownLatch handshakeGate = new CountDownLatch(0);
+    /**
+     * Released each time a client connects, before the handshake
+     */
+    final Semaphore connecting = new Semaphore(0);
+    /**
+     * Websocket connections accepted, in order
+     */
+    private final BlockingQueue<Socket> sockets = new LinkedBlockingQueue<>();
+    /**
+     * All sockets, closed with the panel
+     */
+    private final List<Socket> accepted = new CopyOnWriteArrayList<>();
+
+    FakePanel(String serverId) throws IOException {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        wings = new ServerSocket(0, 50, loopback);
+        http = HttpServer.create(new InetSocketAddress(loopback, 0), 0);
+        http.createContext("/api/client/servers/" + serverId + "/websocket", exchange -> {
+            lastAuthorization = exchange.getRequestHeaders().getFirst("Authorization");
+            int count = credentialsCount.incrementAndGet();
+            String body = "{\"data\":{\"token\":\"token-" + count + "\",\"socket\":\"ws://" + loopback.getHostAddress() + ":" + wings.getLocalPort() + "/api/servers/" + serverId + "/ws\"}}";
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(credentialsStatus, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        });
+        http.start();
+
+        acceptThread = new Thread(() -> {
+            while (!wings.isClosed()) {
+                try {
+                    Socket socket = wings.accept();
+                    accepted.add(socket);
+                    socket.setSoTimeout(5000);
+                    connecting.release();
+                    handshakeGate.await(5, TimeUnit.SECONDS);
+                    handshake(socket);
+                    sockets.add(socket);
+                } catch (IOException e) {
+                    // Closed
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "FakePanel Wings");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * Get the URL of the panel
+     *
+     * @return The URL
+     */
+    URI getUrl() {
+        return URI.create("http://" + http.getAddress().getAddress().getHostAddress() + ":" + http.getAddress().getPort() + "/");
+    }
+
+    /**
+     * Wait for the next websocket connection
+     *
+     * @return The socket
+     * @throws InterruptedException If interrupted
+     */
+    Socket accept() throws InterruptedException {
+        Socket socket = sockets.poll(5, TimeUnit.SECONDS);
+        if (socket == null) {
+            throw new AssertionError("No websocket connection");
+        }
+        return socket;
+    }
+
+    /**
+     * Answer the opening handshake of a websocket
+     *
+     * @param socket The socket
+     * @throws IOException If the socket fails
+     */
+    private static void handshake(Socket socket) throws IOException {
+        InputStream in = socket.getInputStream();
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        while (!header.toString(StandardCharsets.ISO_8859_1).endsWith("\r\n\r\n")) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Handshake closed");
+            }
+            header.write(b);
+        }
+        String key = null;
+        for (String line : header.toString(StandardCharsets.ISO_8859_1).split("\r\n")) {
+            if (line.toLowerCase().startsWith("sec-websocket-key:")) {
+                key = line.substring(line.indexOf(':') + 1).trim();
+            }
+        }
+        if (key == null) {
+            throw new IOException("No websocket key");
+        }
+        String accept;
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest((key + WEBSOCKET_GUID).getBytes(StandardCharsets.ISO_8859_1));
+            accept = Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        String response = "HTTP/1.1 101 Switching Protocols\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: " + accept + "\r\n\r\n";
+        socket.getOutputStream().write(response.getBytes(StandardCharsets.ISO_8859_1));
+        socket.getOutputStream().flush();
+    }
+
+    /**
+     * Read the next text message sent by the client, skipping control frames
+     *
+     * @param socket The socket
+     * @return The text, or null if the client closed or dropped the websocket
+     * @throws IOException If the socket fails or times out
+     */
+    static String readText(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        while (true) {
+            int first;
+            try {
+                first = in.readUnsignedByte();
+            } catch (EOFException e) {
+                return null;
+            }
+            int second = in.readUnsignedByte();
+            int opcode = first & 0x0F;
+            long length = second & 0x7F;
+            if (length == 126) {
+                length = in.readUnsignedShort();
+            } else if (length == 127) {
+                length = in.readLong();
+            }
+            byte[] mask = new byte[4];
+            if ((second & 0x80) != 0) {
+                in.readFully(mask);
+            }
+            byte[] payload = new byte[(int) length];
+            in.readFully(payload);
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] ^= mask[i % 4];
+            }
+            if (opcode == 0x1) {
+                return new String(payload, StandardCharsets.UTF_8);
+            }
+            if (opcode == 0x8) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Check that the client neither sends anything nor drops the websocket for a while
+     *
+     * @param socket The socket
+     * @param millis The time to wait
+     * @return true if nothing was received
+     * @throws IOException If the socket fails
+     */
+    static boolean isSilent(Socket socket, int millis) throws IOException {
+        int timeout = socket.getSoTimeout();
+        socket.setSoTimeout(millis);
+        try {
+            socket.getInputStream().read();
+            return false;
+        } catch (SocketTimeoutException e) {
+            return true;
+        } finally {
+            socket.setSoTimeout(timeout);
+        }
+    }
+
+    /**
+     * Send a text message to the client
+     *
+     * @param socket The socket
+     * @param text   The text
+     * @throws IOException If the socket fails
+     */
+    static void sendText(Socket socket, String text) throws IOException {
+        sendFrame(socket, 0x1, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Close the websocket from the server side
+     *
+     * @param socket The socket
+     * @param code   The close code
+     * @throws IOException If the socket fails
+     */
+    static void sendClose(Socket socket, int code) throws IOException {
+        sendFrame(socket, 0x8, new byte[]{(byte) (code >> 8), (byte) code});
+    }
+
+    private static void sendFrame(Socket socket, int opcode, byte[] payload) throws IOException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.write(0x80 | opcode);
+        if (payload.length < 126) {
+            frame.write(payload.length);
+        } else {
+            frame.write(126);
+            frame.write(payload.length >> 8);
+            frame.write(payload.length);
+        }
+        frame.write(payload);
+        OutputStream out = socket.getOutputStream();
+        out.write(frame.toByteArray());
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        http.stop(0);
+        wings.close();
+        for (Socket socket : accepted) {
+            socket.close();
+        }
+    }
+}
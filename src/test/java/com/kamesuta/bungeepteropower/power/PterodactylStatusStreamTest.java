@@ -0,0 +1,207 @@
+package com.kamesuta.bungeepteropower.power;
+
+import com.kamesuta.bungeepteropower.BungeePteroPower;
+import com.kamesuta.bungeepteropower.api.PowerStatus;
+import com.kamesuta.bungeepteropower.api.PowerStatusListener;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PterodactylStatusStreamTest {
+    private static final String SERVER_NAME = "lobby";
+    private static final String SERVER_ID = "1234abcd";
+    /**
+     * Marker recorded when the listener is closed
+     */
+    private static final String CLOSED = "closed";
+
+    private FakePanel panel;
+    private PterodactylClient client;
+    private PterodactylStatusStream stream;
+
+    @BeforeAll
+    static void setUpLogger() {
+        BungeePteroPower.logger = Logger.getLogger("BungeePteroPowerTest");
+    }
+
+    @BeforeEach
+    void setUp() throws Exception {
+        panel = new FakePanel(SERVER_ID);
+        client = new PterodactylClient(panel.getUrl(), "ptlc_test", 2, 600, 10, 0, 0);
+        stream = new PterodactylStatusStream(serverName -> client);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        stream.closeAll();
+        client.close();
+        panel.close();
+    }
+
+    @Test
+    void authenticatesWithTheTokenFromThePanel() throws Exception {
+        stream.subscribe(SERVER_NAME, SERVER_ID, new RecordingListener());
+        Socket socket = panel.accept();
+
+        assertEquals("{\"event\":\"auth\",\"args\":[\"token-1\"]}", FakePanel.readText(socket));
+        assertEquals("Bearer ptlc_test", panel.lastAuthorization);
+    }
+
+    @Test
+    void dispatchesStatusAndStatsEvents() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        stream.subscribe(SERVER_NAME, SERVER_ID, listener);
+        Socket socket = panel.accept();
+        FakePanel.readText(socket);
+
+        FakePanel.sendText(socket, "{\"event\":\"status\",\"args\":[\"starting\"]}");
+        assertEquals(PowerStatus.STARTING, listener.next());
+
+        FakePanel.sendText(socket, "{\"event\":\"stats\",\"args\":[\"{\\\"state\\\":\\\"running\\\",\\\"memory_bytes\\\":1024}\"]}");
+        assertEquals(PowerStatus.RUNNING, listener.next());
+
+        // Unknown events and states are ignored
+        FakePanel.sendText(socket, "{\"event\":\"console output\",\"args\":[\"Done\"]}");
+        FakePanel.sendText(socket, "{\"event\":\"status\",\"args\":[\"unknown\"]}");
+        FakePanel.sendText(socket, "{\"event\":\"status\",\"args\":[\"stopping\"]}");
+        assertEquals(PowerStatus.STOPPING, listener.next());
+    }
+
+    @Test
+    void sharesOneWebsocketBetweenListeners() throws Exception {
+        RecordingListener first = new RecordingListener();
+        RecordingListener second = new RecordingListener();
+        stream.subscribe(SERVER_NAME, SERVER_ID, first);
+        stream.subscribe(SERVER_NAME, SERVER_ID, second);
+        Socket socket = panel.accept();
+        FakePanel.readText(socket);
+
+        FakePanel.sendText(socket, "{\"event\":\"status\",\"args\":[\"offline\"]}");
+        assertEquals(PowerStatus.OFFLINE, first.next());
+        assertEquals(PowerStatus.OFFLINE, second.next());
+        assertEquals(1, panel.credentialsCount.get());
+    }
+
+    @Test
+    void renewsTheTokenWhenExpiring() throws Exception {
+        stream.subscribe(SERVER_NAME, SERVER_ID, new RecordingListener());
+        Socket socket = panel.accept();
+        assertEquals("{\"event\":\"auth\",\"args\":[\"token-1\"]}", FakePanel.readText(socket));
+
+        FakePanel.sendText(socket, "{\"event\":\"token expiring\"}");
+        assertEquals("{\"event\":\"auth\",\"args\":[\"token-2\"]}", FakePanel.readText(socket));
+        assertEquals(2, panel.credentialsCount.get());
+    }
+
+    @Test
+    void closesListenersWhenTheTokenExpired() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        stream.subscribe(SERVER_NAME, SERVER_ID, listener);
+        Socket socket = panel.accept();
+        FakePanel.readText(socket);
+
+        FakePanel.sendText(socket, "{\"event\":\"token expired\"}");
+        assertEquals(CLOSED, listener.next());
+    }
+
+    @Test
+    void fallsBackToPollingWhenTheWebsocketCloses() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        stream.subscribe(SERVER_NAME, SERVER_ID, listener);
+        Socket socket = panel.accept();
+        FakePanel.readText(socket);
+
+        // The listener is told to poll instead, and nothing more is pushed to it
+        FakePanel.sendClose(socket, 1001);
+        assertEquals(CLOSED, listener.next());
+        assertNull(listener.poll(200));
+
+        // The next subscriber opens a new websocket
+        RecordingListener next = new RecordingListener();
+        stream.subscribe(SERVER_NAME, SERVER_ID, next);
+        Socket reopened = panel.accept();
+        assertEquals("{\"event\":\"auth\",\"args\":[\"token-2\"]}", FakePanel.readText(reopened));
+        FakePanel.sendText(reopened, "{\"event\":\"status\",\"args\":[\"running\"]}");
+        assertEquals(PowerStatus.RUNNING, next.next());
+        assertNull(listener.poll(200));
+    }
+
+    @Test
+    void fallsBackToPollingWhenCredentialsAreRefused() throws Exception {
+        panel.credentialsStatus = 403;
+        RecordingListener listener = new RecordingListener();
+        stream.subscribe(SERVER_NAME, SERVER_ID, listener);
+
+        assertEquals(CLOSED, listener.next());
+    }
+
+    @Test
+    void closesTheWebsocketWhenTheLastListenerLeaves() throws Exception {
+        Runnable first = stream.subscribe(SERVER_NAME, SERVER_ID, new RecordingListener());
+        Runnable second = stream.subscribe(SERVER_NAME, SERVER_ID, new RecordingListener());
+        Socket socket = panel.accept();
+        FakePanel.readText(socket);
+
+        first.run();
+        assertTrue(FakePanel.isSilent(socket, 200));
+        second.run();
+        assertNull(FakePanel.readText(socket));
+    }
+
+    @Test
+    void abortsTheWebsocketWhenEveryoneLeftWhileConnecting() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        panel.handshakeGate = gate;
+        Runnable unsubscribe = stream.subscribe(SERVER_NAME, SERVER_ID, new RecordingListener());
+        assertTrue(panel.connecting.tryAcquire(5, TimeUnit.SECONDS));
+
+        // Leave before the handshake finishes
+        unsubscribe.run();
+        gate.countDown();
+
+        // The socket built afterwards is dropped instead of authenticated
+        Socket socket = panel.accept();
+        assertNull(FakePanel.readText(socket));
+    }
+
+    /**
+     * Records the statuses and the close in order
+     */
+    private static class RecordingListener implements PowerStatusListener {
+        private final BlockingQueue<Object> events = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onStatus(PowerStatus status) {
+            events.add(status);
+        }
+
+        @Override
+        public void onClosed() {
+            events.add(CLOSED);
+        }
+
+        private Object next() throws InterruptedException {
+            Object event = events.poll(5, TimeUnit.SECONDS);
+            if (event == null) {
+                throw new AssertionError("No event");
+            }
+            return event;
+        }
+
+        private Object poll(long millis) throws InterruptedException {
+            return events.poll(millis, TimeUnit.MILLISECONDS);
+        }
+    }
+}